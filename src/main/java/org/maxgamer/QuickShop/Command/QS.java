@@ -1,14 +1,12 @@
 package org.maxgamer.QuickShop.Command;
 
 import java.io.File;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
-import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.block.Block;
@@ -18,6 +16,7 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
 import org.bukkit.event.player.PlayerTeleportEvent.TeleportCause;
+import org.bukkit.inventory.Inventory;
 import org.bukkit.util.BlockIterator;
 import org.maxgamer.QuickShop.QuickShop;
 import org.maxgamer.QuickShop.Database.Database;
@@ -42,7 +41,7 @@ public class QS implements CommandExecutor {
             final BlockIterator bIt = new BlockIterator((Player) sender, 10);
             while (bIt.hasNext()) {
                 final Block b = bIt.next();
-                final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+                final Shop shop = plugin.getShopManager().getShop(b);
                 if (shop != null) {
                     shop.setUnlimited(!shop.isUnlimited());
                     shop.update();
@@ -71,9 +70,9 @@ public class QS implements CommandExecutor {
         final BlockIterator bIt = new BlockIterator(p, 10);
         while (bIt.hasNext()) {
             final Block b = bIt.next();
-            final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+            final Shop shop = plugin.getShopManager().getShop(b);
             if (shop != null) {
-                if (p.equals(shop.getOwner().getPlayer())) {
+                if (p.getUniqueId().equals(shop.getOwnerId())) {
                     shop.delete();
                     sender.sendMessage(ChatColor.GREEN + "Success. Deleted shop.");
                 } else {
@@ -170,12 +169,12 @@ public class QS implements CommandExecutor {
             final BlockIterator bIt = new BlockIterator((Player) sender, 10);
             while (bIt.hasNext()) {
                 final Block b = bIt.next();
-                final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+                final Shop shop = plugin.getShopManager().getShop(b);
                 if (shop != null) {
                     shop.setOwner(newOwner);
                     shop.update();
 
-                    sender.sendMessage(MsgUtil.getMessage("command.new-owner", shop.getOwner().getName()));
+                    sender.sendMessage(MsgUtil.getMessage("command.new-owner", newOwner.getName()));
                     return;
                 }
             }
@@ -203,7 +202,7 @@ public class QS implements CommandExecutor {
             final BlockIterator bIt = new BlockIterator((Player) sender, 10);
             while (bIt.hasNext()) {
                 final Block b = bIt.next();
-                final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+                final Shop shop = plugin.getShopManager().getShop(b);
                 if (shop != null) {
                     try {
                         shop.add(shop.getItem(), add);
@@ -227,12 +226,14 @@ public class QS implements CommandExecutor {
             final BlockIterator bIt = new BlockIterator((Player) sender, 10);
             while (bIt.hasNext()) {
                 final Block b = bIt.next();
-                final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+                final Shop shop = plugin.getShopManager().getShop(b);
                 if (shop != null) {
                     if (shop instanceof ContainerShop) {
                         final ContainerShop cs = (ContainerShop) shop;
                         try {
-                            cs.getInventory().clear();
+                            final Inventory inv = cs.getInventory();
+                            inv.clear();
+                            plugin.getShopManager().inventoryChanged(inv);
                         } catch (InvalidShopException e) {
                             sender.sendMessage(MsgUtil.getMessage("shop-is-invalid"));
                             QuickShop.instance.log(e.getMessage());
@@ -268,29 +269,9 @@ public class QS implements CommandExecutor {
             final Player p = (Player) sender;
             final Location loc = p.getEyeLocation().clone();
 
-            final double minDistance = plugin.getConfig().getInt("shop.find-distance");
-            double minDistanceSquared = minDistance * minDistance;
-            final int chunkRadius = (int) minDistance / 16 + 1;
-            Shop closest = null;
+            final double minDistance = plugin.getSettings().findDistance;
+            final Shop closest = plugin.getShopManager().findNearestShop(loc, lookFor, minDistance);
 
-            final Chunk c = loc.getChunk();
-
-            for (int x = -chunkRadius + c.getX(); x < chunkRadius + c.getX(); x++) {
-                for (int z = -chunkRadius + c.getZ(); z < chunkRadius + c.getZ(); z++) {
-                    final Chunk d = c.getWorld().getChunkAt(x, z);
-                    final HashMap<Location, Shop> inChunk = plugin.getShopManager().getShops(d);
-                    if (inChunk == null) {
-                        continue;
-                    }
-                    for (final Shop shop: inChunk.values()) {
-                        if (shop.getDataName().toLowerCase().contains(lookFor)
-                                && shop.getLocation().distanceSquared(loc) < minDistanceSquared) {
-                            closest = shop;
-                            minDistanceSquared = shop.getLocation().distanceSquared(loc);
-                        }
-                    }
-                }
-            }
             if (closest == null) {
                 sender.sendMessage(MsgUtil.getMessage("no-nearby-shop", args[1]));
                 return;
@@ -300,7 +281,7 @@ public class QS implements CommandExecutor {
             // Hack fix to make /qs find not used by /back
             p.teleport(lookAt(loc, lookat).add(0, -1.62, 0), TeleportCause.UNKNOWN);
             p.sendMessage(MsgUtil.getMessage("nearby-shop-this-way",
-                    "" + (int) Math.floor(Math.sqrt(minDistanceSquared))));
+                    "" + (int) Math.floor(closest.getLocation().distance(loc))));
 
         } else {
             sender.sendMessage(MsgUtil.getMessage("no-permission"));
@@ -312,10 +293,9 @@ public class QS implements CommandExecutor {
             final BlockIterator bIt = new BlockIterator((Player) sender, 10);
             while (bIt.hasNext()) {
                 final Block b = bIt.next();
-                final Shop shop = plugin.getShopManager().getShop(b.getLocation());
-                if (shop != null && sender.equals(shop.getOwner().getPlayer())) {
+                final Shop shop = plugin.getShopManager().getShop(b);
+                if (shop != null && ((Player) sender).getUniqueId().equals(shop.getOwnerId())) {
                     shop.setShopType(ShopType.BUYING);
-                    shop.setSignText();
                     shop.update();
 
                     sender.sendMessage(MsgUtil.getMessage("command.now-buying", shop.getDataName()));
@@ -333,10 +313,9 @@ public class QS implements CommandExecutor {
             final BlockIterator bIt = new BlockIterator((Player) sender, 10);
             while (bIt.hasNext()) {
                 final Block b = bIt.next();
-                final Shop shop = plugin.getShopManager().getShop(b.getLocation());
-                if (shop != null && sender.equals(shop.getOwner().getPlayer())) {
+                final Shop shop = plugin.getShopManager().getShop(b);
+                if (shop != null && ((Player) sender).getUniqueId().equals(shop.getOwnerId())) {
                     shop.setShopType(ShopType.SELLING);
-                    shop.setSignText();
                     shop.update();
                     sender.sendMessage(MsgUtil.getMessage("command.now-selling", shop.getDataName()));
                     return;
@@ -368,7 +347,7 @@ public class QS implements CommandExecutor {
             }
             double fee = 0;
             if (plugin.priceChangeRequiresFee) {
-                fee = plugin.getConfig().getDouble("shop.fee-for-price-change");
+                fee = plugin.getSettings().feeForPriceChange;
                 if (fee > 0 && plugin.getEcon().getBalance((Player)sender) < fee) {
                     sender.sendMessage(MsgUtil.getMessage("you-cant-afford-to-change-price",
                             plugin.getEcon().format(fee)));
@@ -380,9 +359,9 @@ public class QS implements CommandExecutor {
             // Loop through every block they're looking at upto 10 blocks away
             while (bIt.hasNext()) {
                 final Block b = bIt.next();
-                final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+                final Shop shop = plugin.getShopManager().getShop(b);
 
-                if (shop != null && (sender.equals(shop.getOwner().getPlayer()) || sender.hasPermission("quickshop.other.price"))) {
+                if (shop != null && (((Player) sender).getUniqueId().equals(shop.getOwnerId()) || sender.hasPermission("quickshop.other.price"))) {
                     if (shop.getPrice() == price) {
                         // Stop here if there isn't a price change
                         sender.sendMessage(MsgUtil.getMessage("no-price-change"));
@@ -404,7 +383,7 @@ public class QS implements CommandExecutor {
 
                     // Update the shop
                     shop.setPrice(price);
-                    shop.setSignText();
+                    plugin.getSignRefresher().refresh(shop);
                     shop.update();
                     sender.sendMessage(MsgUtil.getMessage("price-is-now", plugin.getEcon().format(shop.getPrice())));
 
@@ -534,10 +513,10 @@ public class QS implements CommandExecutor {
 
                     int nostock = 0;
 
-                    for (final HashMap<ShopChunk, HashMap<Location, Shop>> inWorld: plugin.getShopManager().getShops()
+                    for (final Map<ShopChunk, Map<Location, Shop>> inWorld: plugin.getShopManager().getShopIndex()
                             .values()) {
                         worlds++;
-                        for (final HashMap<Location, Shop> inChunk: inWorld.values()) {
+                        for (final Map<Location, Shop> inChunk: inWorld.values()) {
                             chunks++;
                             for (final Shop shop: inChunk.values()) {
                                 if (shop.isBuying()) {
@@ -566,6 +545,14 @@ public class QS implements CommandExecutor {
                     sender.sendMessage(ChatColor.GREEN + "" + doubles + " double shops. ");
                     sender.sendMessage(ChatColor.GREEN + "" + nostock
                             + " selling shops (excluding doubles) which will be removed by /qs clean.");
+                    if (plugin.getDB().getCore() instanceof SQLiteCore) {
+                        final SQLiteCore core = (SQLiteCore) plugin.getDB().getCore();
+                        sender.sendMessage(ChatColor.GREEN + "Database: " + core.getQueueDepth() + " queued, "
+                                + core.getWrittenCount() + " written in " + core.getCommitCount() + " commits, "
+                                + String.format("%.2f", core.getAverageCommitMillis()) + "ms average, "
+                                + String.format("%.2f", core.getMaxCommitMillis()) + "ms max, "
+                                + core.getOverflowCount() + " times the queue was full.");
+                    }
 
                     return true;
                 }
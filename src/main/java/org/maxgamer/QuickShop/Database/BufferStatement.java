@@ -9,6 +9,7 @@ public class BufferStatement {
     private final Object[]  values;
     private final String    query;
     private final Exception stacktrace;
+    private Object          key;
 
     /**
      * Represents a PreparedStatement in a state before preparing it (E.g. No
@@ -29,6 +30,27 @@ public class BufferStatement {
                                        // came from.
     }
 
+    /**
+     * Sets the key used to order this statement. Statements with equal keys
+     * are executed in the order they were queued.
+     * 
+     * @param key
+     *            The key, such as the location of the shop the statement is
+     *            for
+     * @return This statement
+     */
+    public BufferStatement setKey(Object key) {
+        this.key = key;
+        return this;
+    }
+
+    /**
+     * @return The key used to order this statement, or null if it has none
+     */
+    public Object getKey() {
+        return key;
+    }
+
     /**
      * Returns a prepared statement using the given connection.
      * Will try to return an empty statement if something went wrong.
@@ -46,10 +68,32 @@ public class BufferStatement {
     public PreparedStatement prepareStatement(Connection con) throws SQLException {
         PreparedStatement ps;
         ps = con.prepareStatement(query);
+        bind(ps);
+        return ps;
+    }
+
+    /**
+     * Sets the values of this statement on an already prepared statement, so
+     * one PreparedStatement can be reused for every statement with the same
+     * query.
+     * 
+     * @param ps
+     *            A statement prepared from {@link #getQuery()}
+     * @throws SQLException
+     *             If the values can't be set.
+     */
+    public void bind(PreparedStatement ps) throws SQLException {
+        ps.clearParameters();
         for (int i = 1; i <= values.length; i++) {
             ps.setObject(i, values[i - 1]);
         }
-        return ps;
+    }
+
+    /**
+     * @return The query this statement executes, with ? placeholders
+     */
+    public String getQuery() {
+        return query;
     }
 
     /**
@@ -55,6 +55,17 @@ public class Database {
         return core.getConnection();
     }
 
+    /**
+     * Opens a new connection to this database, for a long query on another
+     * thread which shouldn't share the connection from getConnection(). The
+     * caller must close it.
+     * 
+     * @return The new connection, or null if it couldn't be opened
+     */
+    public Connection openConnection() {
+        return core.openConnection();
+    }
+
     /**
      * Executes the given statement either immediately, or soon.
      * 
@@ -68,6 +79,22 @@ public class Database {
         core.queue(bs);
     }
 
+    /**
+     * Executes the given statement either immediately, or soon. Statements
+     * given the same key are always executed in the order they were given.
+     * 
+     * @param key
+     *            The key to order by, such as the location of a shop
+     * @param query
+     *            The query
+     * @param objs
+     *            The string values for each ? in the given query.
+     */
+    public void executeOrdered(Object key, String query, Object... objs) {
+        final BufferStatement bs = new BufferStatement(query, objs).setKey(key);
+        core.queue(bs);
+    }
+
     /**
      * Returns true if the table exists
      * 
@@ -5,6 +5,14 @@ import java.sql.Connection;
 public interface DatabaseCore {
     Connection getConnection();
 
+    /**
+     * Opens a new connection, which isn't shared with anything else. The
+     * caller must close it.
+     *
+     * @return The connection, or null if it couldn't be opened
+     */
+    Connection openConnection();
+
     void queue(BufferStatement bs);
 
     void flush();
@@ -36,6 +36,12 @@ public class DatabaseHelper {
             ps.execute();
             ps.close();
         } catch (final SQLException ignored) {}
+        try {
+            // Binary copy of itemConfig, filled in as shops are loaded
+            ps = db.getConnection().prepareStatement("ALTER TABLE shops ADD COLUMN itemData BLOB");
+            ps.execute();
+            ps.close();
+        } catch (final SQLException ignored) {}
 
     }
 
@@ -60,7 +66,7 @@ public class DatabaseHelper {
         final String createTable = "CREATE TABLE shops (" + "ownerId  TEXT(36) NOT NULL, "
                 + "price  double(32, 2) NOT NULL, " + "itemConfig TEXT CHARSET utf8 NOT NULL, "
                 + "x  INTEGER(32) NOT NULL, " + "y  INTEGER(32) NOT NULL, " + "z  INTEGER(32) NOT NULL, "
-                + "world VARCHAR(32) NOT NULL, " + "unlimited  boolean, " + "type  boolean, "
+                + "world VARCHAR(32) NOT NULL, " + "unlimited  boolean, " + "type  boolean, " + "itemData  BLOB, "
                 + "PRIMARY KEY (x, y, z, world) " + ");";
         st.execute(createTable);
     }
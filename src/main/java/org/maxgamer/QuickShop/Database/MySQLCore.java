@@ -5,82 +5,310 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * MySQL database core. Queued statements are run off the calling thread by a
+ * fixed number of single threaded lanes, so at most maxInFlight statements run
+ * at once. Statements with the same key always go to the same lane, so they
+ * run in the order they were queued. Statements without a key share a lane.
+ *
+ * Lanes borrow connections from a bounded pool. Idle connections are checked
+ * on a timer rather than before every statement, so a statement which fails
+ * because the server dropped its connection is run once more on a new one.
+ */
 public class MySQLCore implements DatabaseCore {
-    private final String                 url;
-    private static final int             MAX_CONNECTIONS = 8;
-    private Properties info;
-    private static ArrayList<Connection> pool            = new ArrayList<>();
+    private final String                           url;
+    private final Properties                       info;
+
+    private final int                              maxConnections;
+    private final int                              maxInFlight;
+    private final long                             validationInterval;
+
+    /** Connections which aren't in use */
+    private final ArrayBlockingQueue<Connection>   idle;
+    /** Connections which are open, in use or idle */
+    private final AtomicInteger                    open = new AtomicInteger();
+    /** The connection handed out by getConnection(), not part of the pool */
+    private Connection                             connection;
+
+    private ExecutorService[]                      lanes;
+    private ScheduledExecutorService               validator;
+    private volatile boolean                       closed;
 
     public MySQLCore(String host, String database, String port, Properties info) {
+        this(host, database, port, info, 8, 4, 30);
+    }
+
+    /**
+     * @param maxConnections
+     *            The most connections the pool may have open
+     * @param maxInFlight
+     *            The most statements that may run at once
+     * @param validationInterval
+     *            How often idle connections are checked, in seconds
+     */
+    public MySQLCore(String host, String database, String port, Properties info, int maxConnections,
+            int maxInFlight, long validationInterval) {
         info.put("autoReconnect", "true");
         info.put("useUnicode", "true");
         info.put("characterEncoding", "utf8");
         info.putIfAbsent("useSSL","false");
+        // Otherwise the driver ignores fetch sizes and reads whole results
+        // into memory, such as the shops table while loading
+        info.putIfAbsent("useCursorFetch", "true");
         this.info = info;
         url = "jdbc:mysql://" + host + ":" + port + "/" + database;
-        for (int i = 0; i < MySQLCore.MAX_CONNECTIONS; i++) {
-            MySQLCore.pool.add(null);
-        }
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxInFlight = Math.max(1, Math.min(maxInFlight, this.maxConnections));
+        this.validationInterval = Math.max(1, validationInterval);
+        idle = new ArrayBlockingQueue<>(this.maxConnections);
     }
 
     /**
      * Gets the database connection for
-     * executing queries on.
-     * 
+     * executing queries on. This connection isn't shared with queued
+     * statements.
+     *
      * @return The database connection
      */
     @Override
-    public Connection getConnection() {
-        for (int i = 0; i < MySQLCore.MAX_CONNECTIONS; i++) {
-            Connection connection = MySQLCore.pool.get(i);
-            try {
-                // If we have a current connection, fetch it
-                if (connection != null && !connection.isClosed()) {
-                    if (connection.isValid(10)) {
-                        return connection;
-                    }
-                    // Else, it is invalid, so we return another connection.
-                }
-                connection = DriverManager.getConnection(url, info);
+    public synchronized Connection getConnection() {
+        try {
+            // If we have a current connection, fetch it
+            if (connection != null && !connection.isClosed()) {
+                return connection;
+            }
+            connection = DriverManager.getConnection(url, info);
+            return connection;
+        } catch (final SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-                MySQLCore.pool.set(i, connection);
+    @Override
+    public Connection openConnection() {
+        try {
+            return DriverManager.getConnection(url, info);
+        } catch (final SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-                return connection;
+    /**
+     * Takes a connection from the pool, opening a new one if there is room.
+     * Waits for one to be released otherwise.
+     *
+     * @param fresh
+     *            Whether to open a new connection rather than take an idle
+     *            one, if there is room
+     * @return A connection, or null if none could be had
+     */
+    private Connection borrow(boolean fresh) throws InterruptedException {
+        if (!fresh) {
+            final Connection con = idle.poll();
+            if (con != null) {
+                return con;
+            }
+        }
+        if (open.incrementAndGet() <= maxConnections) {
+            try {
+                return DriverManager.getConnection(url, info);
             } catch (final SQLException e) {
+                open.decrementAndGet();
                 e.printStackTrace();
+                return null;
             }
         }
-        return null;
+        open.decrementAndGet();
+        return idle.poll(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Gives a connection back to the pool.
+     *
+     * @param con
+     *            The connection
+     * @param broken
+     *            Whether the connection failed, and should be thrown away
+     */
+    private void release(Connection con, boolean broken) {
+        if (broken || closed || !idle.offer(con)) {
+            discard(con);
+        }
+    }
+
+    private void discard(Connection con) {
+        open.decrementAndGet();
+        try {
+            con.close();
+        } catch (final SQLException ignored) {}
+    }
+
+    /**
+     * Checks every idle connection, throwing away the ones which went bad.
+     * Run by the validator.
+     */
+    private void validateIdle() {
+        final List<Connection> check = new ArrayList<>(idle.size());
+        idle.drainTo(check);
+        for (final Connection con: check) {
+            boolean valid;
+            try {
+                valid = con.isValid(5);
+            } catch (final SQLException e) {
+                valid = false;
+            }
+            release(con, !valid);
+        }
+    }
+
+    private synchronized ExecutorService[] getLanes() {
+        if (lanes == null) {
+            lanes = new ExecutorService[maxInFlight];
+            for (int i = 0; i < maxInFlight; i++) {
+                final int lane = i;
+                lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                    final Thread t = new Thread(r, "QuickShop MySQL " + lane);
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            validator = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "QuickShop MySQL validator");
+                t.setDaemon(true);
+                return t;
+            });
+            validator.scheduleWithFixedDelay(this::validateIdle, validationInterval, validationInterval,
+                    TimeUnit.SECONDS);
+        }
+        return lanes;
     }
 
     @Override
     public void queue(BufferStatement bs) {
+        if (closed) {
+            run(bs);
+            return;
+        }
+        final ExecutorService[] lanes = getLanes();
+        final Object key = bs.getKey();
+        final int lane = key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
         try {
-            Connection con = getConnection();
-            while (con == null) {
-                try {
-                    Thread.sleep(15);
-                } catch (final InterruptedException ignored) {}
-                // Try again
-                con = getConnection();
-            }
-            final PreparedStatement ps = bs.prepareStatement(con);
+            lanes[lane].execute(() -> run(bs));
+        } catch (final RejectedExecutionException e) {
+            // We were closed while queueing
+            run(bs);
+        }
+    }
+
+    private void run(BufferStatement bs) {
+        if (!run(bs, false)) {
+            // The connection went bad, perhaps dropped by the server since
+            // it was last checked. Try again on a new one.
+            run(bs, true);
+        }
+    }
+
+    /**
+     * @param fresh
+     *            Whether to run it on a new connection
+     * @return false if the connection turned out to be broken, so the
+     *         statement may be worth running again
+     */
+    private boolean run(BufferStatement bs, boolean fresh) {
+        Connection con;
+        try {
+            con = borrow(fresh);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            con = null;
+        }
+        if (con == null) {
+            System.out.println("Could not get a database connection! Lost " + bs);
+            return true;
+        }
+        boolean broken = false;
+        try (PreparedStatement ps = bs.prepareStatement(con)) {
             ps.execute();
-            ps.close();
         } catch (final SQLException e) {
-            e.printStackTrace();
+            try {
+                broken = !con.isValid(2);
+            } catch (final SQLException ignored) {
+                broken = true;
+            }
+            if (!broken || fresh) {
+                e.printStackTrace();
+                System.out.println("Failed to execute " + bs);
+            }
         }
+        release(con, broken);
+        return !broken;
     }
 
+    /**
+     * Waits for every statement queued so far to finish.
+     */
     @Override
-    public void close() {
-        // Nothing, because queries are executed immediately for MySQL
+    public void flush() {
+        final ExecutorService[] lanes;
+        synchronized (this) {
+            lanes = this.lanes;
+        }
+        if (lanes == null) {
+            return;
+        }
+        final List<Future<?>> done = new ArrayList<>(lanes.length);
+        for (final ExecutorService lane: lanes) {
+            done.add(lane.submit(() -> {}));
+        }
+        for (final Future<?> f: done) {
+            try {
+                f.get(30, TimeUnit.SECONDS);
+            } catch (final ExecutionException | TimeoutException e) {
+                e.printStackTrace();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
     @Override
-    public void flush() {
-        // Nothing, because queries are executed immediately for MySQL
+    public void close() {
+        flush();
+        closed = true;
+        synchronized (this) {
+            if (lanes != null) {
+                for (final ExecutorService lane: lanes) {
+                    lane.shutdown();
+                }
+                validator.shutdownNow();
+                try {
+                    for (final ExecutorService lane: lanes) {
+                        lane.awaitTermination(10, TimeUnit.SECONDS);
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        Connection con;
+        while ((con = idle.poll()) != null) {
+            discard(con);
+        }
     }
-}
\ No newline at end of file
+}
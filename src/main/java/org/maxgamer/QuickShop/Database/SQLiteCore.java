@@ -6,23 +6,90 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * SQLite database core. Queued statements are written by a single writer
+ * thread, which groups them into transactions of up to commitSize statements.
+ * A statement is committed at most commitInterval milliseconds after it was
+ * queued, so a busy server makes a few commits a second rather than one per
+ * statement.
+ *
+ * The writer uses its own connection. {@link #getConnection()} returns a
+ * separate connection for reads and for the few statements which are run
+ * directly.
+ */
 public class SQLiteCore implements DatabaseCore {
+    /** The most distinct queries we keep a PreparedStatement around for */
+    private static final int                     MAX_CACHED_STATEMENTS = 64;
+    /** The least time between warnings that the queue is full */
+    private static final long                    FULL_WARNING_NANOS    = TimeUnit.MINUTES.toNanos(1);
+
     private Connection                           connection;
     private final File                           dbFile;
-    private volatile Thread                      watcher;
+    private volatile Thread                      writer;
+    private volatile boolean                     closed;
+
+    private final int                            commitSize;
+    private final long                           commitInterval;
+    private final ArrayBlockingQueue<BufferStatement> queue;
+    /** Notified when the writer should look at the queue */
+    private final Object                         signal                = new Object();
+    /**
+     * Set by the first statement queued since the writer last found the queue
+     * empty, so that one wakes the writer however many are queued at once
+     */
+    private final AtomicBoolean                  wakeup                = new AtomicBoolean();
 
-    private volatile LinkedList<BufferStatement> queue = new LinkedList<>();
+    /* Only used while holding dbFile */
+    private Connection                           writeConnection;
+    private final HashMap<String, PreparedStatement> statements        = new HashMap<>();
+    private final ArrayList<BufferStatement>     batch;
+
+    private final AtomicLong                     commits               = new AtomicLong();
+    private final AtomicLong                     written               = new AtomicLong();
+    private final AtomicLong                     commitNanos           = new AtomicLong();
+    private volatile long                        maxCommitNanos;
+    /** The number of times the queue was full, and a statement was written on the thread queueing it */
+    private final AtomicLong                     overflows             = new AtomicLong();
+    private volatile long                        lastFullWarning       = System.nanoTime() - FULL_WARNING_NANOS;
 
     public SQLiteCore(File dbFile) {
+        this(dbFile, 500, 1000, 10000);
+    }
+
+    /**
+     * @param dbFile
+     *            The database file, created if it doesn't exist
+     * @param commitSize
+     *            The most statements written in one transaction
+     * @param commitInterval
+     *            The longest a queued statement waits before it is
+     *            committed, in milliseconds
+     * @param queueSize
+     *            The most statements that can wait in the queue. When it is
+     *            full, the thread queueing a statement writes the queue itself.
+     */
+    public SQLiteCore(File dbFile, int commitSize, long commitInterval, int queueSize) {
         this.dbFile = dbFile;
+        this.commitSize = Math.max(1, commitSize);
+        this.commitInterval = Math.max(0, commitInterval);
+        this.queue = new ArrayBlockingQueue<>(Math.max(this.commitSize, queueSize));
+        this.batch = new ArrayList<>(this.commitSize);
     }
 
     /**
      * Gets the database connection for
      * executing queries on.
-     * 
+     *
      * @return The database connection
      */
     @Override
@@ -35,17 +102,28 @@ public class SQLiteCore implements DatabaseCore {
         } catch (final SQLException e) {
             e.printStackTrace();
         }
+        connection = openConnection();
+        return connection;
+    }
 
+    @Override
+    public Connection openConnection() {
         if (dbFile.exists()) {
             // So we need a new connection
             try {
                 Class.forName("org.sqlite.JDBC");
-                connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
-                if(connection.isValid(2)){
-                    return connection;
-                }else {
+                final Connection con = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+                if (!con.isValid(2)) {
                     throw new SQLException("Connection is Not Valid");
                 }
+                try (Statement st = con.createStatement()) {
+                    // The writer and readers use different connections. WAL
+                    // lets them work at the same time, and the timeout makes
+                    // one wait for the other instead of failing.
+                    st.execute("PRAGMA journal_mode=WAL");
+                    st.execute("PRAGMA busy_timeout=10000");
+                }
+                return con;
             } catch (final ClassNotFoundException | SQLException e) {
                 e.printStackTrace();
                 return null;
@@ -57,7 +135,7 @@ public class SQLiteCore implements DatabaseCore {
                 dbFile.createNewFile();
                 // Now we won't need a new file, just a connection.
                 // This will return that new connection.
-                return getConnection();
+                return openConnection();
             } catch (final IOException e) {
                 e.printStackTrace();
                 return null;
@@ -67,48 +145,298 @@ public class SQLiteCore implements DatabaseCore {
 
     @Override
     public void queue(BufferStatement bs) {
-        synchronized (queue) {
-            queue.add(bs);
+        while (!queue.offer(bs)) {
+            // The writer can't keep up. Write on this thread rather than
+            // dropping the statement or letting the queue grow forever.
+            warnFull();
+            writeQueued();
+        }
+        if (closed) {
+            writeQueued();
+            return;
         }
 
-        if (watcher == null || !watcher.isAlive()) {
-            startWatcher();
+        if (!wakeup.get() && wakeup.compareAndSet(false, true) || queue.size() >= commitSize) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+        if (writer == null) {
+            startWriter();
         }
     }
 
+    /**
+     * Says that the queue is full, at most once a minute, since writing it on
+     * the server thread stalls the server until the writer is done.
+     */
+    private void warnFull() {
+        overflows.incrementAndGet();
+        final long now = System.nanoTime();
+        if (now - lastFullWarning >= FULL_WARNING_NANOS) {
+            lastFullWarning = now;
+            System.out.println("The SQLite queue is full (" + (queue.remainingCapacity() + queue.size())
+                    + " changes), so changes are being saved on " + Thread.currentThread().getName()
+                    + ". Raise database.sqlite.queue-size if this happens often.");
+        }
+    }
+
+    /**
+     * Writes every queued statement before returning.
+     */
     @Override
     public void flush() {
-        while (!queue.isEmpty()) {
-            BufferStatement bs;
-            synchronized (queue) {
-                bs = queue.removeFirst();
+        writeQueued();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        final Thread w = writer;
+        if (w != null) {
+            try {
+                w.join(10000);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
+        writeQueued();
 
-            synchronized (dbFile) {
+        synchronized (dbFile) {
+            for (final PreparedStatement ps: statements.values()) {
                 try {
-                    final PreparedStatement ps = bs.prepareStatement(getConnection());
-                    ps.execute();
                     ps.close();
+                } catch (final SQLException ignored) {}
+            }
+            statements.clear();
+            if (writeConnection != null) {
+                try {
+                    writeConnection.close();
                 } catch (final SQLException e) {
                     e.printStackTrace();
                 }
+                writeConnection = null;
             }
         }
     }
 
-    @Override
-    public void close() {
-        flush();
+    /**
+     * @return The number of statements waiting to be written
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of times the queue was full, so a statement was
+     *         written by the thread queueing it instead of the writer
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    /**
+     * @return The number of transactions committed so far
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * @return The number of statements written so far
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return The average time taken to write and commit a transaction, in
+     *         milliseconds
+     */
+    public double getAverageCommitMillis() {
+        final long count = commits.get();
+        return count == 0 ? 0 : commitNanos.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return The longest time taken to write and commit a transaction, in
+     *         milliseconds
+     */
+    public double getMaxCommitMillis() {
+        return maxCommitNanos / 1000000.0;
+    }
+
+    private synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(() -> {
+            while (!closed) {
+                try {
+                    awaitBatch();
+                } catch (final InterruptedException e) {
+                    break;
+                }
+                writeQueued();
+            }
+        }, "QuickShop SQLite writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
-    private void startWatcher() {
-        watcher = new Thread(() -> {
+    /**
+     * Waits for a statement to be queued, and then until either commitSize
+     * statements are waiting or commitInterval has passed.
+     */
+    private void awaitBatch() throws InterruptedException {
+        synchronized (signal) {
+            while (true) {
+                // Cleared before looking, so a statement queued after this
+                // sets it again and notifies, even if flush() emptied the
+                // queue since the last wake up.
+                wakeup.set(false);
+                if (!queue.isEmpty() || closed) {
+                    break;
+                }
+                signal.wait();
+            }
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commitInterval);
+            long remaining;
+            while (queue.size() < commitSize && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(signal, remaining);
+            }
+        }
+    }
+
+    /**
+     * Writes everything in the queue, commitSize statements per transaction.
+     * Holding dbFile while doing so means flush() can't return while the
+     * writer thread is half way through a batch.
+     */
+    private void writeQueued() {
+        synchronized (dbFile) {
+            while (true) {
+                batch.clear();
+                queue.drainTo(batch, commitSize);
+                if (batch.isEmpty()) {
+                    return;
+                }
+                commit(batch);
+            }
+        }
+    }
+
+    /**
+     * Writes and commits a batch. If any statement fails the transaction is
+     * rolled back, the connection is reset and the whole batch is tried once
+     * more. If it fails again, the statements are written one per transaction
+     * so only the ones which can't be written are lost.
+     */
+    private void commit(ArrayList<BufferStatement> batch) {
+        if (write(batch) || write(batch)) {
+            return;
+        }
+        if (getWriteConnection() == null) {
+            System.out.println("Could not commit " + batch.size() + " changes to the database! They were lost!");
+            return;
+        }
+        System.out.println("Could not commit " + batch.size() + " changes to the database, saving them one by one.");
+        for (final BufferStatement bs: batch) {
+            if (!write(Collections.singletonList(bs))) {
+                System.out.println("Could not save a change to the database, it was lost! " + bs);
+            }
+        }
+    }
+
+    /**
+     * @return false if the batch wasn't committed, and the connection was
+     *         reset
+     */
+    private boolean write(List<BufferStatement> batch) {
+        final Connection con = getWriteConnection();
+        if (con == null) {
+            System.out.println("Could not connect to the database!");
+            return false;
+        }
+
+        final long start = System.nanoTime();
+        BufferStatement current = null;
+        try {
+            for (final BufferStatement bs: batch) {
+                current = bs;
+                final PreparedStatement ps = getStatement(con, bs.getQuery());
+                bs.bind(ps);
+                ps.execute();
+            }
+            current = null;
+            con.commit();
+        } catch (final SQLException e) {
+            e.printStackTrace();
+            System.out.println(current != null ? "Failed to execute " + current
+                    : "Could not commit " + batch.size() + " changes to the database.");
+            try {
+                con.rollback();
+            } catch (final SQLException ignored) {}
+            resetWriteConnection();
+            return false;
+        }
+
+        final long took = System.nanoTime() - start;
+        commits.incrementAndGet();
+        written.addAndGet(batch.size());
+        commitNanos.addAndGet(took);
+        if (took > maxCommitNanos) {
+            maxCommitNanos = took;
+        }
+        return true;
+    }
+
+    private PreparedStatement getStatement(Connection con, String query) throws SQLException {
+        PreparedStatement ps = statements.get(query);
+        if (ps == null) {
+            ps = con.prepareStatement(query);
+            if (statements.size() >= MAX_CACHED_STATEMENTS) {
+                for (final PreparedStatement old: statements.values()) {
+                    old.close();
+                }
+                statements.clear();
+            }
+            statements.put(query, ps);
+        }
+        return ps;
+    }
+
+    private Connection getWriteConnection() {
+        try {
+            if (writeConnection != null && !writeConnection.isClosed()) {
+                return writeConnection;
+            }
+        } catch (final SQLException e) {
+            e.printStackTrace();
+        }
+        statements.clear();
+        writeConnection = openConnection();
+        if (writeConnection != null) {
             try {
-                Thread.sleep(30000);
-            } catch (final InterruptedException ignored) {}
+                writeConnection.setAutoCommit(false);
+            } catch (final SQLException e) {
+                e.printStackTrace();
+                resetWriteConnection();
+            }
+        }
+        return writeConnection;
+    }
 
-            flush();
-        });
-        watcher.start();
+    private void resetWriteConnection() {
+        statements.clear();
+        if (writeConnection != null) {
+            try {
+                writeConnection.close();
+            } catch (final SQLException ignored) {}
+            writeConnection = null;
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,7 +1,6 @@
 package org.maxgamer.QuickShop.Listeners;
 
 import org.bukkit.GameMode;
-import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
@@ -12,9 +11,13 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
 import org.bukkit.event.block.BlockDropItemEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.SignChangeEvent;
 import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.entity.ItemDespawnEvent;
+import org.bukkit.event.entity.ItemMergeEvent;
 import org.bukkit.event.inventory.InventoryPickupItemEvent;
 import org.bukkit.inventory.InventoryHolder;
 import org.maxgamer.QuickShop.QuickShop;
@@ -44,7 +47,7 @@ public class BlockListener implements Listener {
         final Player p = e.getPlayer();
 
         final Block chest = Util.getSecondHalf(b);
-        if (chest != null && plugin.getShopManager().getShop(chest.getLocation()) != null
+        if (chest != null && plugin.getShopManager().getShop(chest) != null
                 && !p.hasPermission("quickshop.create.double")) {
             e.setCancelled(true);
             p.sendMessage(MsgUtil.getMessage("no-double-chests"));
@@ -62,13 +65,13 @@ public class BlockListener implements Listener {
 
         // If the shop was a chest
         if (b.getState() instanceof InventoryHolder) {
-            final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+            final Shop shop = plugin.getShopManager().getShop(b);
             if (shop == null) {
                 return;
             }
 
             // If they're either survival or the owner, they can break it
-            if (p.getGameMode() == GameMode.CREATIVE && !p.equals(shop.getOwner().getPlayer())) {
+            if (p.getGameMode() == GameMode.CREATIVE && !p.getUniqueId().equals(shop.getOwnerId())) {
                 e.setCancelled(true);
                 p.sendMessage(MsgUtil.getMessage("no-creative-break"));
                 return;
@@ -82,14 +85,14 @@ public class BlockListener implements Listener {
             shop.delete();
             p.sendMessage(MsgUtil.getMessage("success-removed-shop"));
         } else if (Util.checkIfSign(b)) {
-            final Shop shop = getShopNextTo(b.getLocation());
+            final Shop shop = getShopNextTo(b);
             if (shop == null) {
                 return;
             }
 
             // If they're in creative and not the owner, don't let them
             // (accidents happen)
-            if (p.getGameMode() == GameMode.CREATIVE && !p.equals(shop.getOwner().getPlayer())) {
+            if (p.getGameMode() == GameMode.CREATIVE && !p.getUniqueId().equals(shop.getOwnerId())) {
                 e.setCancelled(true);
                 p.sendMessage(MsgUtil.getMessage("no-creative-break"));
                 return;
@@ -111,27 +114,53 @@ public class BlockListener implements Listener {
         }
         for (int i = 0; i < e.blockList().size(); i++) {
             final Block b = e.blockList().get(i);
-            final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+            final Shop shop = plugin.getShopManager().getShop(b);
             if (shop != null) {
                 shop.delete();
             }
+            plugin.getShopManager().blockChanged(b);
         }
     }
 
+    /**
+     * Shops remember which blocks their signs are on, these tell them when a
+     * sign next to them may have come or gone.
+     * @param e the event
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onSignChange(SignChangeEvent e) {
+        plugin.getShopManager().blockChanged(e.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlaceNearShop(BlockPlaceEvent e) {
+        plugin.getShopManager().blockChanged(e.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBreakNearShop(BlockBreakEvent e) {
+        plugin.getShopManager().blockChanged(e.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBurnNearShop(BlockBurnEvent e) {
+        plugin.getShopManager().blockChanged(e.getBlock());
+    }
+
     /**
      * Gets the shop a sign is attached to
      * 
-     * @param loc
-     *            The location of the sign
+     * @param sign
+     *            The sign block
      * @return The shop
      */
-    private Shop getShopNextTo(Location loc) {
-        final Block b = Util.getAttached(loc.getBlock());
+    private Shop getShopNextTo(Block sign) {
+        final Block b = Util.getAttached(sign);
         // Util.getAttached(b)
         if (b == null) {
             return null;
         }
-        return plugin.getShopManager().getShop(b.getLocation());
+        return plugin.getShopManager().getShop(b);
     }
     
     @EventHandler(priority=EventPriority.LOWEST, ignoreCancelled=true)
@@ -140,11 +169,28 @@ public class BlockListener implements Listener {
             event.setCancelled(true);
         }
     }
+
+    /**
+     * Display items of the same item on shops next to each other would
+     * otherwise merge into one.
+     * @param event the event
+     */
+    @EventHandler(priority=EventPriority.LOWEST, ignoreCancelled=true)
+    private void onItemMerge(ItemMergeEvent event) {
+        if (DisplayItem.isDisplayItem(event.getEntity()) || DisplayItem.isDisplayItem(event.getTarget())) {
+            event.setCancelled(true);
+        }
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    private void onItemDespawn(ItemDespawnEvent event) {
+        DisplayItem.forget(event.getEntity());
+    }
     @EventHandler(priority = EventPriority.NORMAL,ignoreCancelled = true)
     private void onSignBreak(BlockDropItemEvent e){
         if(e.getBlock().getBlockData() instanceof Sign){
             Sign sign = (Sign) e.getBlock().getState().getData();
-            Shop shop = getShopNextTo(e.getBlock().getLocation());
+            Shop shop = getShopNextTo(e.getBlock());
             if(shop != null && shop.getSigns().contains(sign))
                 e.setCancelled(true);
             }
@@ -1,9 +1,6 @@
 package org.maxgamer.QuickShop.Listeners;
 
-import java.util.HashMap;
-
 import org.bukkit.Chunk;
-import org.bukkit.Location;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
@@ -11,6 +8,7 @@ import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.ChunkUnloadEvent;
 import org.maxgamer.QuickShop.QuickShop;
 import org.maxgamer.QuickShop.Shop.Shop;
+import org.maxgamer.QuickShop.Shop.ShopChunkMap;
 
 public class ChunkListener implements Listener {
     private final QuickShop plugin;
@@ -22,18 +20,20 @@ public class ChunkListener implements Listener {
     @EventHandler(priority = EventPriority.HIGHEST)
     public void onChunkLoad(ChunkLoadEvent e) {
         final Chunk c = e.getChunk();
-        if (plugin.getShopManager().getShops() == null) {
-            return;
-        }
-
-        final HashMap<Location, Shop> inChunk = plugin.getShopManager().getShops(c);
+        final ShopChunkMap inChunk = plugin.getShopManager().getChunkShops(c);
 
         if (inChunk == null) {
             return;
         }
 
-        for (final Shop shop: inChunk.values()) {
-            shop.onLoad();
+        for (final Shop shop: inChunk.toArray()) {
+            if (plugin.getShopManager().checkDeferred(shop)) {
+                shop.onLoad();
+            }
+        }
+        // Once for the chunk, rather than once per shop
+        if (plugin.getItemWatcher() != null) {
+            plugin.getItemWatcher().sweep(c);
         }
     }
 
@@ -41,12 +41,12 @@ public class ChunkListener implements Listener {
     public void onChunkUnload(ChunkUnloadEvent e) {
         final Chunk c = e.getChunk();
 
-        final HashMap<Location, Shop> inChunk = plugin.getShopManager().getShops(c);
+        final ShopChunkMap inChunk = plugin.getShopManager().getChunkShops(c);
 
         if (inChunk == null) {
             return;
         }
-        for (final Shop shop: inChunk.values()) {
+        for (final Shop shop: inChunk.toArray()) {
             shop.onUnload();
         }
     }
@@ -0,0 +1,75 @@
+package org.maxgamer.QuickShop.Listeners;
+
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
+import org.bukkit.event.inventory.InventoryMoveItemEvent;
+import org.maxgamer.QuickShop.QuickShop;
+import org.maxgamer.QuickShop.Shop.Shop;
+import org.maxgamer.QuickShop.Util.Util;
+
+/**
+ * Throws away the cached stock and space of shops whose inventory is changed
+ * by players, hoppers or the chest next to them.
+ */
+public class InventoryListener implements Listener {
+    private final QuickShop plugin;
+
+    public InventoryListener(QuickShop plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onClick(InventoryClickEvent e) {
+        plugin.getShopManager().inventoryChanged(e.getInventory());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onDrag(InventoryDragEvent e) {
+        plugin.getShopManager().inventoryChanged(e.getInventory());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onClose(InventoryCloseEvent e) {
+        plugin.getShopManager().inventoryChanged(e.getInventory());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onMove(InventoryMoveItemEvent e) {
+        plugin.getShopManager().inventoryChanged(e.getSource());
+        plugin.getShopManager().inventoryChanged(e.getDestination());
+    }
+
+    /**
+     * A chest placed next to a shop makes it a double chest, with more space.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlace(BlockPlaceEvent e) {
+        invalidateSecondHalf(e.getBlock());
+    }
+
+    /**
+     * Breaking half of a double chest shop leaves the other half smaller.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBreak(BlockBreakEvent e) {
+        invalidateSecondHalf(e.getBlock());
+    }
+
+    private void invalidateSecondHalf(Block b) {
+        final Block other = Util.getSecondHalf(b);
+        if (other == null) {
+            return;
+        }
+        final Shop shop = plugin.getShopManager().getShop(other);
+        if (shop != null) {
+            shop.invalidateCounts();
+        }
+    }
+}
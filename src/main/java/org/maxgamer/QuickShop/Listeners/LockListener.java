@@ -37,7 +37,7 @@ public class LockListener implements Listener {
             return; // Interacted with air
         }
 
-        Shop shop = plugin.getShopManager().getShop(b.getLocation());
+        Shop shop = plugin.getShopManager().getShop(b);
 
         // Make sure they're not using the non-shop half of a double chest.
         if (shop == null) {
@@ -45,13 +45,13 @@ public class LockListener implements Listener {
             if (b == null) {
                 return;
             }
-            shop = plugin.getShopManager().getShop(b.getLocation());
+            shop = plugin.getShopManager().getShop(b);
             if (shop == null) {
                 return;
             }
         }
 
-        if (!p.equals(shop.getOwner().getPlayer())) {
+        if (!p.getUniqueId().equals(shop.getOwnerId())) {
             if (p.hasPermission("quickshop.other.open")) {
                 p.sendMessage(MsgUtil.getMessage("bypassing-lock"));
                 return;
@@ -81,13 +81,13 @@ public class LockListener implements Listener {
         }
         final Player p = e.getPlayer();
 
-        Shop shop = plugin.getShopManager().getShop(c.getLocation());
+        Shop shop = plugin.getShopManager().getShop(c);
         if (shop == null) {
             c = Util.getSecondHalf(c);
             if (c == null) {
                 return; // You didn't place a hopper on a shop. Meh.
             } else {
-                shop = plugin.getShopManager().getShop(c.getLocation());
+                shop = plugin.getShopManager().getShop(c);
             }
 
             if (shop == null) {
@@ -95,7 +95,7 @@ public class LockListener implements Listener {
             }
         }
 
-        if (!p.equals(shop.getOwner().getPlayer())) {
+        if (!p.getUniqueId().equals(shop.getOwnerId())) {
             if (p.hasPermission("quickshop.other.open")) {
                 p.sendMessage(MsgUtil.getMessage("bypassing-lock"));
                 return;
@@ -116,13 +116,13 @@ public class LockListener implements Listener {
 
         // If the chest was a chest
         if (Util.canBeShop(b)) {
-            final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+            final Shop shop = plugin.getShopManager().getShop(b);
             if (shop == null) {
                 return; // Wasn't a shop
             }
 
             // If they owned it or have bypass perms, they can destroy it
-            if (!p.equals(shop.getOwner().getPlayer()) && !p.hasPermission("quickshop.other.destroy")) {
+            if (!p.getUniqueId().equals(shop.getOwnerId()) && !p.hasPermission("quickshop.other.destroy")) {
                 e.setCancelled(true);
                 p.sendMessage(MsgUtil.getMessage("no-permission"));
             }
@@ -131,14 +131,14 @@ public class LockListener implements Listener {
             if (b == null) {
                 return;
             }
-            final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+            final Shop shop = plugin.getShopManager().getShop(b);
             if (shop == null) {
                 return;
             }
 
             // If they're the shop owner or have bypass perms, they can destroy
             // it.
-            if (!p.equals(shop.getOwner().getPlayer()) && !p.hasPermission("quickshop.other.destroy")) {
+            if (!p.getUniqueId().equals(shop.getOwnerId()) && !p.hasPermission("quickshop.other.destroy")) {
                 e.setCancelled(true);
                 p.sendMessage(MsgUtil.getMessage("no-permission"));
             }
@@ -156,7 +156,7 @@ public class LockListener implements Listener {
         }
         List<Integer> index = new ArrayList<>();
         for (Block b:e.blockList()) {
-            final Shop shop = plugin.getShopManager().getShop(b.getLocation());
+            final Shop shop = plugin.getShopManager().getShop(b);
             if (shop != null) {
                 index.add(e.blockList().indexOf(b));
             }
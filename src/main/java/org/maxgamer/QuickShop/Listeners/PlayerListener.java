@@ -23,7 +23,6 @@ import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
 import org.maxgamer.QuickShop.QuickShop;
 import org.maxgamer.QuickShop.Shop.DisplayItem;
 import org.maxgamer.QuickShop.Shop.Info;
@@ -80,16 +79,15 @@ public class PlayerListener implements Listener {
             return;
         }
 
-        final Location loc = b.getLocation();
         final ItemStack item = e.getItem();
 
         // Get the shop
-        Shop shop = plugin.getShopManager().getShop(loc);
+        Shop shop = plugin.getShopManager().getShop(b);
         // If that wasn't a shop, search nearby shops
         if (shop == null && Util.checkIfSign(b)) {
             final Block attached = Util.getAttached(b);
             if (attached != null) {
-                shop = plugin.getShopManager().getShop(attached.getLocation());
+                shop = plugin.getShopManager().getShop(attached);
             }
         }
         // Purchase handling
@@ -191,12 +189,14 @@ public class PlayerListener implements Listener {
 
     @EventHandler
     public void onJoin(final PlayerJoinEvent e) {
+        plugin.getOwnerCache().join(e.getPlayer());
         // Notify the player any messages they were sent
         Bukkit.getScheduler().runTaskLater(QuickShop.instance, () -> MsgUtil.flush(e.getPlayer()), 60);
     }
 
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent e) {
+        plugin.getOwnerCache().quit(e.getPlayer());
         // Remove them from the menu
         plugin.getShopManager().getActions().remove(e.getPlayer().getName());
     }
@@ -206,30 +206,16 @@ public class PlayerListener implements Listener {
         if(!(e.getEntity() instanceof Player)){
             return;
         }
-        final ItemStack stack = e.getItem().getItemStack();
-        try {
-            if (stack.getItemMeta().getDisplayName().startsWith(ChatColor.RED + "QuickShop ")) {
-                e.setCancelled(true);
-                return;
-                // You shouldn't be able to pick up that...
-            }
-            if(DisplayItem.isDisplayItem(e.getItem())){
-                e.setCancelled(true);
-            }
-        } catch (final NullPointerException ignored) {} // if meta/displayname/stack
-                                                   // is null. We don't really
-                                                   // care in that case.
+        if (DisplayItem.isDisplayItem(e.getItem())) {
+            // You shouldn't be able to pick up that...
+            e.setCancelled(true);
+        }
     }
     
     @EventHandler(priority=EventPriority.LOW, ignoreCancelled=false)
     public void onPlayerClick(InventoryClickEvent event)  {
         ItemStack item = event.getCurrentItem();
-        if (item == null) {
-            return;
-        }
-        
-        ItemMeta meta = item.getItemMeta();
-        if (meta != null && meta.getDisplayName() != null && meta.getDisplayName().startsWith(ChatColor.RED + "QuickShop ")) {
+        if (DisplayItem.isDisplayItem(item)) {
             event.setCurrentItem(null);
             event.setCancelled(true);
         }
@@ -1,7 +1,6 @@
 package org.maxgamer.QuickShop.Listeners;
 
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.util.Map;
 
 import org.bukkit.Chunk;
 import org.bukkit.Location;
@@ -13,6 +12,7 @@ import org.bukkit.event.world.WorldUnloadEvent;
 import org.maxgamer.QuickShop.QuickShop;
 import org.maxgamer.QuickShop.Shop.Shop;
 import org.maxgamer.QuickShop.Shop.ShopChunk;
+import org.maxgamer.QuickShop.Shop.ShopChunkMap;
 
 public class WorldListener implements Listener {
     QuickShop plugin;
@@ -33,46 +33,35 @@ public class WorldListener implements Listener {
          */
         final World world = e.getWorld();
 
-        // New world data
-        final HashMap<ShopChunk, HashMap<Location, Shop>> inWorld = new HashMap<>(1);
-
-        // Old world data
-        final HashMap<ShopChunk, HashMap<Location, Shop>> oldInWorld = plugin.getShopManager()
-                .getShops(world.getName());
+        final Map<ShopChunk, Map<Location, Shop>> inWorld = plugin.getShopManager().getWorldIndex(world.getName());
 
         // Nothing in the old world, therefore we don't care. No locations to
         // update.
-        if (oldInWorld == null) {
+        if (inWorld == null) {
             return;
         }
 
-        for (final Entry<ShopChunk, HashMap<Location, Shop>> oldInChunk: oldInWorld.entrySet()) {
-            final HashMap<Location, Shop> inChunk = new HashMap<>(1);
-
-            // Put the new chunk were the old chunk was
-            inWorld.put(oldInChunk.getKey(), inChunk);
-
-            for (final Entry<Location, Shop> entry: oldInChunk.getValue().entrySet()) {
-                final Shop shop = entry.getValue();
+        // Shops are indexed by world name and block coordinates, so only the
+        // World reference inside each location needs replacing.
+        for (final Map<Location, Shop> inChunk: inWorld.values()) {
+            for (final Shop shop: inChunk.values()) {
                 shop.getLocation().setWorld(world);
-
-                inChunk.put(shop.getLocation(), shop);
             }
         }
-        // Done - Now we can store the new world dataz!
-        plugin.getShopManager().getShops().put(world.getName(), inWorld);
 
         // This is a workaround, because I don't get parsed chunk events when a
         // world first loads....
         // So manually tell all of these shops they're loaded.
         for (final Chunk chunk: world.getLoadedChunks()) {
-            final HashMap<Location, Shop> inChunk = plugin.getShopManager().getShops(chunk);
+            final ShopChunkMap inChunk = plugin.getShopManager().getChunkShops(chunk);
             if (inChunk == null) {
                 continue;
             }
 
-            for (final Shop shop: inChunk.values()) {
-                shop.onLoad();
+            for (final Shop shop: inChunk.toArray()) {
+                if (plugin.getShopManager().checkDeferred(shop)) {
+                    shop.onLoad();
+                }
             }
         }
     }
@@ -83,12 +72,12 @@ public class WorldListener implements Listener {
         // world unloads, I think...
         // So manually tell all of these shops they're unloaded.
         for (final Chunk chunk: e.getWorld().getLoadedChunks()) {
-            final HashMap<Location, Shop> inChunk = plugin.getShopManager().getShops(chunk);
+            final ShopChunkMap inChunk = plugin.getShopManager().getChunkShops(chunk);
             if (inChunk == null) {
                 continue;
             }
 
-            for (final Shop shop: inChunk.values()) {
+            for (final Shop shop: inChunk.toArray()) {
                 shop.onUnload();
             }
         }
@@ -1,25 +1,19 @@
 package org.maxgamer.QuickShop;
 
 import java.io.File;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 import org.bstats.bukkit.Metrics;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
-import org.bukkit.Location;
 import org.bukkit.OfflinePlayer;
-import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
-import org.bukkit.inventory.InventoryHolder;
-import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask;
 import org.maxgamer.QuickShop.Command.QS;
@@ -35,17 +29,20 @@ import org.maxgamer.QuickShop.Economy.Economy_Vault;
 import org.maxgamer.QuickShop.Listeners.BlockListener;
 import org.maxgamer.QuickShop.Listeners.ChatListener;
 import org.maxgamer.QuickShop.Listeners.ChunkListener;
+import org.maxgamer.QuickShop.Listeners.InventoryListener;
 import org.maxgamer.QuickShop.Listeners.LockListener;
 import org.maxgamer.QuickShop.Listeners.PlayerListener;
 import org.maxgamer.QuickShop.Listeners.WorldListener;
 import org.maxgamer.QuickShop.Metrics.ShopListener;
-import org.maxgamer.QuickShop.Shop.ContainerShop;
+import org.maxgamer.QuickShop.Shop.DisplaySpawnQueue;
+import org.maxgamer.QuickShop.Shop.DisplayVisibility;
+import org.maxgamer.QuickShop.Shop.OwnerCache;
 import org.maxgamer.QuickShop.Shop.Shop;
+import org.maxgamer.QuickShop.Shop.ShopLoader;
 import org.maxgamer.QuickShop.Shop.ShopManager;
-import org.maxgamer.QuickShop.Shop.ShopType;
+import org.maxgamer.QuickShop.Shop.SignRefresher;
 import org.maxgamer.QuickShop.Util.Converter;
 import org.maxgamer.QuickShop.Util.MsgUtil;
-import org.maxgamer.QuickShop.Util.Util;
 import org.maxgamer.QuickShop.Watcher.ItemWatcher;
 import org.maxgamer.QuickShop.Watcher.LogWatcher;
 
@@ -76,9 +73,20 @@ public class QuickShop extends JavaPlugin {
     private final PlayerListener           playerListener         = new PlayerListener(this);
     private final ChunkListener            chunkListener          = new ChunkListener(this);
     private final WorldListener            worldListener          = new WorldListener(this);
+    private final InventoryListener        inventoryListener      = new InventoryListener(this);
 
+    private ItemWatcher                    itemWatcher;
+    private DisplaySpawnQueue              displaySpawnQueue;
+    private BukkitTask                     displaySpawnTask;
+    private DisplayVisibility              displayVisibility;
+    private BukkitTask                     displayVisibilityTask;
     private BukkitTask                     itemWatcherTask;
+    private SignRefresher                  signRefresher;
+    private OwnerCache                     ownerCache;
+    private volatile Settings              settings;
+    private BukkitTask                     signRefresherTask;
     private LogWatcher                     logWatcher;
+    private ShopLoader                     shopLoader;
 
     /** Whether players are required to sneak to create/buy from a shop */
     public boolean                         sneak;
@@ -146,14 +154,33 @@ public class QuickShop extends JavaPlugin {
             return;
         }
 
+        final ConfigurationSection shopCfg = getConfig().getConfigurationSection("shop");
+        ownerCache = new OwnerCache(shopCfg.getInt("owner-cache-size", 1000));
+        for (final Player p : Bukkit.getOnlinePlayers()) {
+            ownerCache.join(p);
+        }
+
         // Create the shop manager.
         shopManager = new ShopManager(this);
 
+        signRefresher = new SignRefresher(this, shopCfg.getInt("sign-refresh-interval", 10),
+                shopCfg.getLong("sign-refresh-budget", 2));
+        signRefresherTask = Bukkit.getScheduler().runTaskTimer(this, signRefresher, 1, 1);
+
         if (display) {
             // Display item handler thread
             getLogger().info("Starting item scheduler");
-            final ItemWatcher itemWatcher = new ItemWatcher(this);
-            itemWatcherTask = Bukkit.getScheduler().runTaskTimer(this, itemWatcher, 600, 600);
+            itemWatcher = new ItemWatcher(this, shopCfg.getInt("display-check-interval", 600),
+                    shopCfg.getLong("display-check-budget", 500));
+            itemWatcherTask = Bukkit.getScheduler().runTaskTimer(this, itemWatcher, 1, 1);
+            displaySpawnQueue = new DisplaySpawnQueue(this, shopCfg.getInt("display-spawn-quota", 20));
+            displaySpawnTask = Bukkit.getScheduler().runTaskTimer(this, displaySpawnQueue, 1, 1);
+
+            final double radius = shopCfg.getDouble("display-radius", 48);
+            if (radius > 0) {
+                displayVisibility = new DisplayVisibility(this, radius, 20, shopCfg.getLong("display-hide-delay", 200));
+                displayVisibilityTask = Bukkit.getScheduler().runTaskTimer(this, displayVisibility, 20, 20);
+            }
         }
 
         if (getConfig().getBoolean("log-actions")) {
@@ -186,10 +213,10 @@ public class QuickShop extends JavaPlugin {
         getLogger().info("Registering Listeners");
         Bukkit.getServer().getPluginManager().registerEvents(blockListener, this);
         Bukkit.getServer().getPluginManager().registerEvents(playerListener, this);
-        if (display) {
-            Bukkit.getServer().getPluginManager().registerEvents(chunkListener, this);
-        }
+        // Always needed, shops loaded in unloaded chunks are checked when the chunk loads
+        Bukkit.getServer().getPluginManager().registerEvents(chunkListener, this);
         Bukkit.getServer().getPluginManager().registerEvents(worldListener, this);
+        Bukkit.getServer().getPluginManager().registerEvents(inventoryListener, this);
         chatListener = new ChatListener(this);
         Bukkit.getServer().getPluginManager().registerEvents(chatListener, this);
 
@@ -197,10 +224,6 @@ public class QuickShop extends JavaPlugin {
         final QS commandExecutor = new QS(this);
         getCommand("qs").setExecutor(commandExecutor);
 
-        if (getConfig().getInt("shop.find-distance") > 100) {
-            getLogger().severe("Shop.find-distance is too high! Pick a number under 100!");
-        }
-
         if (Bukkit.getPluginManager().getPlugin("Spout") != null) {
             getLogger().info("Found Spout...");
             useSpout = true;
@@ -236,11 +259,15 @@ public class QuickShop extends JavaPlugin {
                         props.put(entry.getKey(), entry.getValue());
                     }
                 }
-                final DatabaseCore dbCore = new MySQLCore(host, database, port, props);
+                final DatabaseCore dbCore = new MySQLCore(host, database, port, props,
+                        dbCfg.getInt("pool.max-connections", 8), dbCfg.getInt("pool.max-in-flight", 4),
+                        dbCfg.getLong("pool.validation-interval", 30));
                 this.database = new Database(dbCore);
             } else {
                 // SQLite database - Doing this handles file creation
-                final DatabaseCore dbCore = new SQLiteCore(new File(getDataFolder(), "shops.db"));
+                final DatabaseCore dbCore = new SQLiteCore(new File(getDataFolder(), "shops.db"),
+                        dbCfg.getInt("sqlite.commit-size", 500), dbCfg.getLong("sqlite.commit-interval", 1000),
+                        dbCfg.getInt("sqlite.queue-size", 10000));
                 if(dbCore.getConnection() != null){
                     getLogger().info("SqLite: Valid");
                 }
@@ -265,110 +292,22 @@ public class QuickShop extends JavaPlugin {
 
 
     private void loadShopsFromDatabase(){
-        /* Load shops from database to memory */
-        int count = 0; // Shops count
-        Connection con;
-        try {
-            getLogger().info("Loading shops from database...");
-            final int res = Converter.convert();
-
-            if (res < 0) {
-                System.out.println("Could not convert shops. Exiting.");
-                return;
-            }
-            if (res > 0) {
-                System.out.println("Conversion success. Continuing...");
-            }
-
-            con = database.getConnection();
-            final PreparedStatement ps = con.prepareStatement("SELECT * FROM shops");
-            final ResultSet rs = ps.executeQuery();
-
-            int errors = 0;
-            while (rs.next()) {
-                int x = 0;
-                int y = 0;
-                int z = 0;
-                String worldName = null;
-                try {
-                    x = rs.getInt("x");
-                    y = rs.getInt("y");
-                    z = rs.getInt("z");
-                    worldName = rs.getString("world");
-                    final World world = Bukkit.getWorld(worldName);
-                    String itemString = rs.getString("itemConfig");
-                    final ItemStack item = Util.deserialize(itemString);
-                    final UUID owner = UUID.fromString(rs.getString("ownerId"));
-                    final double price = rs.getDouble("price");
-                    final Location loc = new Location(world, x, y, z);
-                    /* Skip invalid shops, if we know of any */
-                    boolean toDelete = false;
-                    if(item == null) {
-                        QuickShop.instance.log("Invalid Shop in Database:");
-                        QuickShop.instance.log("Result: "+ rs.getRow());
-                        QuickShop.instance.log("Item: "+itemString);
-                        toDelete = true;
-                    }
-                    if (world != null && !(loc.getBlock().getState() instanceof InventoryHolder)) {
-                        getLogger().info(
-                              "Shop is not an InventoryHolder in " + rs.getString("world") + " at: " + x + ", " + y
-                                    + ", " + z + ".  Deleting.");
-                        toDelete =true;
-                    }
-                    if(toDelete){
-                        final PreparedStatement delps = getDB().getConnection().prepareStatement(
-                                "DELETE FROM shops WHERE x = ? AND y = ? and z = ? and world = ?");
-                        delps.setInt(1, x);
-                        delps.setInt(2, y);
-                        delps.setInt(3, z);
-                        delps.setString(4, worldName);
-
-                        delps.execute();
-                        continue;
-                    }
-
-                    final int type = rs.getInt("type");
+        getLogger().info("Converting database if needed...");
+        final int res = Converter.convert();
 
-                    final Shop shop = new ContainerShop(loc, price, item, owner);
-                    shop.setUnlimited(rs.getBoolean("unlimited"));
-
-                    shop.setShopType(ShopType.fromID(type));
-
-                    shopManager.loadShop(rs.getString("world"), shop);
-
-                    if (loc.getWorld() != null && loc.getChunk().isLoaded()) {
-                        shop.onLoad();
-                    }
-
-                    count++;
-                } catch (final Exception e) {
-                    errors++;
-                    e.printStackTrace();
-                    getLogger().severe(
-                            "Error loading a shop! Coords: " + worldName + " (" + x + ", " + y + ", " + z + ")...");
-                    if (errors < 3) {
-                        getLogger().info("Deleting the shop...");
-                        final PreparedStatement delps = getDB().getConnection().prepareStatement(
-                                "DELETE FROM shops WHERE x = ? AND y = ? and z = ? and world = ?");
-                        delps.setInt(1, x);
-                        delps.setInt(2, y);
-                        delps.setInt(3, z);
-                        delps.setString(4, worldName);
-
-                        delps.execute();
-                    } else {
-                        getLogger()
-                                .severe("Multiple errors in shops - Something seems to be wrong with your shops database! Please check it out immediately!");
-                        e.printStackTrace();
-                    }
-                }
-            }
-
-        } catch (final SQLException e) {
-            e.printStackTrace();
-            getLogger().severe("Could not load shops.");
+        if (res < 0) {
+            System.out.println("Could not convert shops. Exiting.");
+            return;
+        }
+        if (res > 0) {
+            System.out.println("Conversion success. Continuing...");
         }
-        getLogger().info("Loaded " + count + " shops.");
+
+        final ConfigurationSection loadCfg = getConfig().getConfigurationSection("database.load");
+        final int fetchSize = loadCfg == null ? 1000 : loadCfg.getInt("fetch-size", 1000);
+        final long tickBudget = loadCfg == null ? 10 : loadCfg.getLong("tick-budget", 10);
+        shopLoader = new ShopLoader(this, fetchSize, tickBudget);
+        shopLoader.start();
     }
 
 
@@ -384,6 +323,7 @@ public class QuickShop extends JavaPlugin {
         sneakTrade = getConfig().getBoolean("shop.sneak-to-trade");
 
         priceChangeRequiresFee = getConfig().getBoolean("shop.price-change-requires-fee");
+        settings = new Settings(getConfig());
 
         MsgUtil.loadCfgMessages();
     }
@@ -450,10 +390,24 @@ public class QuickShop extends JavaPlugin {
         if (itemWatcherTask != null) {
             itemWatcherTask.cancel();
         }
+        if (displaySpawnTask != null) {
+            displaySpawnTask.cancel();
+        }
+        if (displayVisibilityTask != null) {
+            displayVisibilityTask.cancel();
+        }
+        if (signRefresherTask != null) {
+            signRefresherTask.cancel();
+            signRefresher.flush();
+        }
         if (logWatcher != null) {
             logWatcher.task.cancel();
             logWatcher.close(); // Closes the file
         }
+        if (shopLoader != null) {
+            shopLoader.cancel();
+            shopLoader = null;
+        }
 
         /* Remove all display items, and any dupes we can find */
         shopManager.clear();
@@ -525,6 +479,53 @@ public class QuickShop extends JavaPlugin {
     public ShopManager getShopManager() {
         return shopManager;
     }
+
+    /**
+     * @return Refreshes shop signs a few times a second instead of after
+     *         every change
+     */
+    public SignRefresher getSignRefresher() {
+        return signRefresher;
+    }
+
+    /**
+     * @return Checks the display items of shops in loaded chunks, or null if
+     *         display items are turned off
+     */
+    public ItemWatcher getItemWatcher() {
+        return itemWatcher;
+    }
+
+    /**
+     * @return Spawns the display items of shops as they load, or null if
+     *         display items are turned off
+     */
+    public DisplaySpawnQueue getDisplaySpawnQueue() {
+        return displaySpawnQueue;
+    }
+
+    /**
+     * @return Decides which shops are near enough to players to show their
+     *         display item, or null if they all do
+     */
+    public DisplayVisibility getDisplayVisibility() {
+        return displayVisibility;
+    }
+
+    /**
+     * @return The config values used while trading, as of the last reload
+     */
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return The owners of shops, which should be used instead of asking
+     *         Bukkit for them
+     */
+    public OwnerCache getOwnerCache() {
+        return ownerCache;
+    }
     
     public OfflinePlayer getTaxAccount() {
         if (taxAccountId == null) {
@@ -543,4 +544,16 @@ public class QuickShop extends JavaPlugin {
             QuickShop.instance.getLogger().log(Level.INFO,out);
         }
     }
+
+    /**
+     * Logs a debug message which is only built if debug is on, for messages
+     * logged on hot paths.
+     *
+     * @param out Makes the message
+     */
+    public static void debugMsg(Supplier<String> out){
+        if(QuickShop.instance.debug){
+            QuickShop.instance.getLogger().log(Level.INFO,out);
+        }
+    }
 }
\ No newline at end of file
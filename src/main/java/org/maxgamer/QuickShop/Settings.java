@@ -0,0 +1,52 @@
+package org.maxgamer.QuickShop;
+
+import org.bukkit.configuration.Configuration;
+
+/**
+ * The config values read while trading, copied out of config.yml once. Looking
+ * a value up in the config walks the section tree each time, which adds up
+ * when it is done several times per purchase.
+ *
+ * A new Settings is made each time the config is reloaded and swapped in
+ * whole, so one is never seen half updated. Get the current one from
+ * {@link QuickShop#getSettings()}, rather than keeping it.
+ */
+public final class Settings {
+    /** The fraction of every sale taken as tax */
+    public final double  tax;
+    /** Whether players are shown the tax on a sale */
+    public final boolean showTax;
+    /** Whether owners of unlimited shops are still paid and charged */
+    public final boolean payUnlimitedShopOwners;
+    /** Whether prices must be whole numbers */
+    public final boolean wholeNumberPricesOnly;
+    /** What it costs to create a shop */
+    public final double  shopCost;
+    /** Whether the cost of a shop is refunded when it is removed */
+    public final boolean refund;
+    /** Whether shops are protected from other players */
+    public final boolean lock;
+    /** Whether a sign is placed on new shops */
+    public final boolean autoSign;
+    /** How far /qs find looks for shops */
+    public final int     findDistance;
+    /** What it costs to change the price of a shop */
+    public final double  feeForPriceChange;
+
+    /**
+     * @param config
+     *            The config to copy the values from
+     */
+    public Settings(Configuration config) {
+        tax = config.getDouble("tax");
+        showTax = config.getBoolean("show-tax");
+        payUnlimitedShopOwners = config.getBoolean("shop.pay-unlimited-shop-owners");
+        wholeNumberPricesOnly = config.getBoolean("whole-number-prices-only");
+        shopCost = config.getDouble("shop.cost");
+        refund = config.getBoolean("shop.refund");
+        lock = config.getBoolean("shop.lock");
+        autoSign = config.getBoolean("shop.auto-sign");
+        findDistance = config.getInt("shop.find-distance");
+        feeForPriceChange = config.getDouble("shop.fee-for-price-change");
+    }
+}
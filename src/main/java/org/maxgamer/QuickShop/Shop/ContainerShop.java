@@ -12,6 +12,7 @@ import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
 import org.bukkit.block.Sign;
 import org.bukkit.block.data.type.WallSign;
 import org.bukkit.enchantments.Enchantment;
@@ -21,27 +22,52 @@ import org.bukkit.event.player.PlayerTeleportEvent.TeleportCause;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
 import org.bukkit.inventory.meta.Damageable;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.maxgamer.QuickShop.QuickShop;
+import org.maxgamer.QuickShop.Settings;
+import org.maxgamer.QuickShop.Util.ItemMatcher;
+import org.maxgamer.QuickShop.Util.ItemTransfer;
 import org.maxgamer.QuickShop.Util.MsgUtil;
 import org.maxgamer.QuickShop.Util.Util;
 import org.maxgamer.QuickShop.exceptions.InvalidShopException;
 
 public class ContainerShop implements Shop {
-    private final Location  loc;
-    private double          price;
-    private UUID            ownerId;
-    private final ItemStack item;
-    private DisplayItem     displayItem;
-    private boolean         unlimited;
-    private ShopType        shopType;
+    /**
+     * The x and z offsets of the blocks next to a shop, which its signs and
+     * the other half of its chest may be on
+     */
+    private static final int[][] SIDE_OFFSETS = { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } };
+    private static final byte    NO_PARTNER   = 4;
+
+    private final Location    loc;
+    private double            price;
+    private UUID              ownerId;
+    private final ItemStack   item;
+    private final ItemMatcher matcher;
+    private DisplayItem       displayItem;
+    private boolean           unlimited;
+    private ShopType          shopType;
+    /** The cached stock and space, or -1 if they need counting again */
+    private int               stock = -1;
+    private int               space = -1;
+    /**
+     * A bit for each of SIDE_OFFSETS with one of our signs on it, or -1 if
+     * they need finding again
+     */
+    private byte              signSides = -1;
+    /**
+     * The index in SIDE_OFFSETS of the other half of our chest, NO_PARTNER if
+     * it is a single chest, or -1 if it needs finding again
+     */
+    private byte              partnerSide = -1;
 
 
-    private Boolean         closed;
+    private Boolean           closed;
 
-    private final QuickShop plugin;
+    private final QuickShop   plugin;
 
     /**
      * Returns a clone of this shop.
@@ -61,6 +87,7 @@ public class ContainerShop implements Shop {
         displayItem = s.displayItem;
         shopType = s.shopType;
         item = s.item;
+        matcher = s.matcher;
         loc = s.loc;
         plugin = s.plugin;
         unlimited = s.unlimited;
@@ -83,12 +110,16 @@ public class ContainerShop implements Shop {
      *            The player who owns this shop.
      */
     public ContainerShop(Location loc, double price, ItemStack item, UUID owner) {
+        this(loc, price, owner, QuickShop.instance.getShopManager().getItemCache().intern(item));
+    }
+
+    private ContainerShop(Location loc, double price, UUID owner, ItemMatcher prototype) {
         this.loc = loc;
         this.price = price;
         this.ownerId = owner;
-        this.item = item.clone();
+        this.matcher = prototype;
+        this.item = prototype.getItem();
         plugin = (QuickShop) Bukkit.getPluginManager().getPlugin("QuickShop");
-        this.item.setAmount(1);
         if (plugin.display) {
             displayItem = new DisplayItem(this, this.item);
         }
@@ -96,6 +127,30 @@ public class ContainerShop implements Shop {
         this.closed = false;
     }
 
+    /**
+     * Adds a new shop, without touching its signs. Used when loading shops.
+     * 
+     * @param loc
+     *            The location of the chest block
+     * @param price
+     *            The cost per item
+     * @param prototype
+     *            The item, as returned by {@link ItemPrototypeCache}. It is
+     *            kept rather than cloned.
+     * @param owner
+     *            The player who owns this shop.
+     * @param shopType
+     *            Whether the shop is buying or selling
+     * @param unlimited
+     *            Whether the shop has unlimited stock
+     */
+    public ContainerShop(Location loc, double price, ItemMatcher prototype, UUID owner, ShopType shopType,
+            boolean unlimited) {
+        this(loc, price, owner, prototype);
+        this.shopType = shopType;
+        this.unlimited = unlimited;
+    }
+
     /**
      * Returns the number of items this shop has in stock.
      * 
@@ -106,7 +161,10 @@ public class ContainerShop implements Shop {
         if (unlimited) {
             return 10000;
         }
-        return Util.countItems(getInventory(), getItem());
+        if (stock < 0) {
+            stock = Util.countItems(getInventory(), matcher);
+        }
+        return stock;
     }
 
     /**
@@ -119,7 +177,43 @@ public class ContainerShop implements Shop {
         if (unlimited) {
             return 10000;
         }
-        return Util.countSpace(getInventory(), item);
+        if (space < 0) {
+            space = Util.countSpace(getInventory(), matcher);
+        }
+        return space;
+    }
+
+    @Override
+    public void invalidateCounts() {
+        stock = -1;
+        space = -1;
+    }
+
+    /**
+     * Updates the cached counts after this shop moved items in or out of its
+     * own inventory. The other half of a double chest shares the inventory,
+     * so its counts are thrown away.
+     * 
+     * @param moved
+     *            The item which was moved
+     * @param added
+     *            How many were added, negative if they were taken out
+     */
+    private void itemsMoved(ItemStack moved, int added) {
+        if (matches(moved)) {
+            if (stock >= 0) {
+                stock += added;
+            }
+            if (space >= 0) {
+                space -= added;
+            }
+        } else {
+            invalidateCounts();
+        }
+        final ContainerShop attached = getAttachedShop();
+        if (attached != null) {
+            attached.invalidateCounts();
+        }
     }
 
     /**
@@ -131,7 +225,7 @@ public class ContainerShop implements Shop {
      */
     @Override
     public boolean matches(ItemStack item) {
-        return Util.matches(this.item, item);
+        return matcher.matches(item);
     }
 
     /**
@@ -141,12 +235,43 @@ public class ContainerShop implements Shop {
      *         Will return null if this shop is not attached to another.
      */
     public ContainerShop getAttachedShop() {
-        final Block c = Util.getSecondHalf(getLocation().getBlock());
-        if (c == null) {
+        if (partnerSide < 0) {
+            partnerSide = findPartner();
+        }
+        if (partnerSide == NO_PARTNER) {
             return null;
         }
-        final Shop shop = plugin.getShopManager().getShop(c.getLocation());
-        return shop == null ? null : (ContainerShop) shop;
+        // Only the shop lookup is done each time, since the other half may
+        // become or stop being a shop without its block changing.
+        final int[] offset = SIDE_OFFSETS[partnerSide];
+        final Shop shop = plugin.getShopManager().getShop(loc.getWorld().getName(), loc.getBlockX() + offset[0],
+                loc.getBlockY(), loc.getBlockZ() + offset[1]);
+        return shop instanceof ContainerShop ? (ContainerShop) shop : null;
+    }
+
+    /**
+     * @return The index in SIDE_OFFSETS of the other half of our chest, or
+     *         NO_PARTNER
+     */
+    private byte findPartner() {
+        final Block b = loc.getBlock();
+        final Block c = Util.getSecondHalf(b);
+        if (c != null) {
+            for (byte i = 0; i < SIDE_OFFSETS.length; i++) {
+                if (c.getX() - b.getX() == SIDE_OFFSETS[i][0] && c.getZ() - b.getZ() == SIDE_OFFSETS[i][1]) {
+                    return i;
+                }
+            }
+        }
+        return NO_PARTNER;
+    }
+
+    /**
+     * Makes the shop look for the other half of its chest again, after a
+     * block next to it was placed or broken.
+     */
+    public void invalidatePartner() {
+        partnerSide = -1;
     }
 
     /**
@@ -162,12 +287,9 @@ public class ContainerShop implements Shop {
             return false;
         }
 
-        // They're both trading the same item
-        try {
-            return nextTo.matches(getItem()) && getShopType() != nextTo.getShopType();
-        } catch (InvalidShopException e){
-            return false;
-        }
+        // They're both trading the same item. Shops sharing a prototype
+        // always are.
+        return getShopType() != nextTo.getShopType() && (nextTo.matcher == matcher || nextTo.matches(item));
     }
 
     /**
@@ -217,10 +339,12 @@ public class ContainerShop implements Shop {
         final String world = getLocation().getWorld().getName();
         final int unlimited = isUnlimited() ? 1 : 0;
 
-        final String q = "UPDATE shops SET ownerId = ?, itemConfig = ?, unlimited = ?, type = ?, price = ? WHERE x = ? AND y = ? and z = ? and world = ?";
+        // The item never changes once the shop is made, so it isn't written
+        // again here.
+        final String q = "UPDATE shops SET ownerId = ?, unlimited = ?, type = ?, price = ? WHERE x = ? AND y = ? and z = ? and world = ?";
         try {
-            plugin.getDB().execute(q, getOwner().getUniqueId(), Util.serialize(getItem()), unlimited, shopType.toID(), getPrice(), x,
-                    y, z, world);
+            plugin.getDB().executeOrdered(ShopManager.databaseKey(getLocation()), q, ownerId,
+                    unlimited, shopType.toID(), getPrice(), x, y, z, world);
         } catch (final Exception e) {
             e.printStackTrace();
             System.out.println("Could not update shop in database! Changes will revert after a reboot!");
@@ -260,9 +384,10 @@ public class ContainerShop implements Shop {
      */
     @Override
     public OfflinePlayer getOwner() {
-        return Bukkit.getOfflinePlayer(ownerId);
+        return plugin.getOwnerCache().get(ownerId);
     }
     
+    @Override
     public UUID getOwnerId() {
         return ownerId;
     }
@@ -275,14 +400,16 @@ public class ContainerShop implements Shop {
     }
 
     /**
-     * @return Returns a dummy itemstack of the item this shop is selling.
+     * @return Returns a dummy itemstack of the item this shop is selling. It
+     *         is a copy, since the shop's own item is shared with other
+     *         shops trading the same item.
      */
     @Override
     @NotNull
     public ItemStack  getItem() throws InvalidShopException{
         if(item == null)
             throw new InvalidShopException("Shop Item was null.");
-        return item;
+        return item.clone();
     }
 
     /**
@@ -302,14 +429,10 @@ public class ContainerShop implements Shop {
         final Inventory inv = getInventory();
         if(inv == null)
             throw new InvalidShopException(this.toString());
-        int remains = amount;
-
-        while (remains > 0) {
-            final int stackSize = Math.min(remains, item.getMaxStackSize());
-            item.setAmount(stackSize);
-            inv.removeItem(item);
-            remains = remains - stackSize;
-        }
+        final ItemStack[] contents = inv.getContents();
+        final int removed = ItemTransfer.take(contents, matcherFor(item), amount, null);
+        inv.setContents(contents);
+        itemsMoved(item, -removed);
     }
 
     /**
@@ -328,15 +451,20 @@ public class ContainerShop implements Shop {
         }
 
         final Inventory inv = getInventory();
+        final ItemStack[] contents = inv.getStorageContents();
+        final int added = ItemTransfer.put(contents, item, amount, inv.getMaxStackSize());
+        inv.setStorageContents(contents);
+        itemsMoved(item, added);
+    }
 
-        int remains = amount;
-
-        while (remains > 0) {
-            final int stackSize = Math.min(remains, item.getMaxStackSize());
-            item.setAmount(stackSize);
-            inv.addItem(item);
-            remains = remains - stackSize;
-        }
+    /**
+     * @param item
+     *            The item to add or remove
+     * @return This shop's matcher if it is this shop's item, otherwise a new
+     *         one
+     */
+    private ItemMatcher matcherFor(ItemStack item) {
+        return item == this.item || matcher.matches(item) ? matcher : new ItemMatcher(item);
     }
 
     /**
@@ -347,61 +475,47 @@ public class ContainerShop implements Shop {
      *            The player to sell to
      * @param amount
      *            The amount to sell
+     * @return The number of items the player got, which is less than amount
+     *         if the shop ran out
      */
     @Override
-    public void sell(Player p, int amount) throws InvalidShopException {
+    public int sell(Player p, int amount) throws InvalidShopException {
         if (amount < 0) {
-            buy(p, -amount);
+            return buy(p, -amount);
         }
+        final int sold;
         // Items to drop on floor
         final ArrayList<ItemStack> floor = new ArrayList<>(5);
-        final Inventory pInv = p.getInventory();
+        final PlayerInventory pInv = p.getInventory();
+        final ItemStack[] playerContents = pInv.getStorageContents();
         if (isUnlimited()) {
-            final ItemStack item = this.item.clone();
-
-            while (amount > 0) {
-                final int stackSize = Math.min(amount, this.item.getMaxStackSize());
-                item.setAmount(stackSize);
-                pInv.addItem(item);
-
-                amount -= stackSize;
+            final int given = ItemTransfer.put(playerContents, item, amount, pInv.getMaxStackSize());
+            int left = amount - given;
+            while (left > 0) {
+                final ItemStack stack = item.clone();
+                stack.setAmount(Math.min(left, item.getMaxStackSize()));
+                floor.add(stack);
+                left -= stack.getAmount();
             }
+            sold = amount;
         } else {
-            final ItemStack[] chestContents = getInventory().getContents();
-            for (int i = 0; amount > 0 && i < chestContents.length; i++) {
-                // Can't clone it here, it could be null
-                ItemStack item = chestContents[i];
-
-                if (item != null && matches(item)) {
-                    // Copy it, we don't want to interfere
-                    item = item.clone();
-
-                    // Amount = total, item.getAmount() = how many items in the
-                    // stack
-                    final int stackSize = Math.min(amount, item.getAmount());
-
-                    // If Amount is item.getAmount(), then this sets the amount
-                    // to 0
-                    // Else it sets it to the remainder
-                    chestContents[i].setAmount(chestContents[i].getAmount() - stackSize);
-
-                    // We can modify this, it is a copy.
-                    item.setAmount(stackSize);
-
-                    // Add the items to the players inventory
-                    floor.addAll(pInv.addItem(item).values());
-
-                    amount -= stackSize;
-                }
-            }
+            final Inventory chestInv = getInventory();
+            final ItemStack[] chestContents = chestInv.getContents();
+            final int given = ItemTransfer.move(chestContents, playerContents, matcher, amount,
+                    pInv.getMaxStackSize());
+            // Whatever didn't fit in their inventory is dropped at their feet
+            final int dropped = ItemTransfer.take(chestContents, matcher, amount - given, floor);
 
-            // We now have to update the chests inventory manually.
-            getInventory().setContents(chestContents);
+            chestInv.setContents(chestContents);
+            sold = given + dropped;
+            itemsMoved(this.item, -sold);
         }
+        pInv.setStorageContents(playerContents);
 
         for (ItemStack aFloor : floor) {
             p.getWorld().dropItem(p.getLocation(), aFloor);
         }
+        return sold;
     }
 
     /**
@@ -412,70 +526,41 @@ public class ContainerShop implements Shop {
      *            The player to buy from
      * @param amount
      *            The amount to buy
+     * @return The number of items taken from the player, which is less than
+     *         amount if they didn't all fit in the shop
      */
     @Override
-    public void buy(Player p, int amount) throws InvalidShopException {
+    public int buy(Player p, int amount) throws InvalidShopException {
         if (amount < 0) {
-            sell(p, -amount);
+            return sell(p, -amount);
         }
 
+        final ItemStack[] playerContents = p.getInventory().getContents();
         if (isUnlimited()) {
-            final ItemStack[] contents = p.getInventory().getContents();
-
-            for (int i = 0; amount > 0 && i < contents.length; i++) {
-                final ItemStack stack = contents[i];
-                if (stack == null) {
-                    continue; // No item
-                }
-                if (matches(stack)) {
-                    final int stackSize = Math.min(amount, stack.getAmount());
-
-                    stack.setAmount(stack.getAmount() - stackSize);
-                    amount -= stackSize;
-                }
-            }
+            final int taken = ItemTransfer.take(playerContents, matcher, amount, null);
             // Send the players new inventory to them
-            p.getInventory().setContents(contents);
+            p.getInventory().setContents(playerContents);
 
             // This should not happen.
-            if (amount > 0) {
+            if (taken < amount) {
                 plugin.getLogger().log(
                         Level.WARNING,
                         "Could not take all items from a players inventory on purchase! " + p.getName() + ", missing: "
-                                + amount + ", item: " + getDataName() + "!");
-            }
-        } else {
-            final ItemStack[] playerContents = p.getInventory().getContents();
-            final Inventory chestInv = getInventory();
-
-            for (int i = 0; amount > 0 && i < playerContents.length; i++) {
-                ItemStack item = playerContents[i];
-
-                if (item != null && matches(item)) {
-                    // Copy it, we don't want to interfere
-                    item = item.clone();
-                    // Amount = total, item.getAmount() = how many items in the
-                    // stack
-                    final int stackSize = Math.min(amount, item.getAmount());
-
-                    // If Amount is item.getAmount(), then this sets the amount
-                    // to 0
-                    // Else it sets it to the remainder
-                    playerContents[i].setAmount(playerContents[i].getAmount() - stackSize);
-
-                    // We can modify this, it is a copy.
-                    item.setAmount(stackSize);
-
-                    // Add the items to the players inventory
-                    chestInv.addItem(item);
-
-                    amount -= stackSize;
-                }
+                                + (amount - taken) + ", item: " + getDataName() + "!");
             }
-
-            // Now update the players inventory.
-            p.getInventory().setContents(playerContents);
+            return taken;
         }
+        final Inventory chestInv = getInventory();
+        final ItemStack[] chestContents = chestInv.getStorageContents();
+        // Anything which doesn't fit in the chest stays with the player
+        final int added = ItemTransfer.move(playerContents, chestContents, matcher, amount,
+                chestInv.getMaxStackSize());
+
+        chestInv.setStorageContents(chestContents);
+        // Now update the players inventory.
+        p.getInventory().setContents(playerContents);
+        itemsMoved(this.item, added);
+        return added;
     }
 
     /**
@@ -487,7 +572,9 @@ public class ContainerShop implements Shop {
      */
     @Override
     public void setOwner(OfflinePlayer owner) {
+        final UUID previous = ownerId;
         this.ownerId = owner.getUniqueId();
+        plugin.getShopManager().ownerChanged(this, previous);
     }
 
     /**
@@ -525,7 +612,8 @@ public class ContainerShop implements Shop {
     }
 
     /**
-     * Changes a shop type to Buying or Selling. Also updates the signs nearby.
+     * Changes a shop type to Buying or Selling. Also queues an update of the
+     * signs nearby.
      * 
      * @param shopType
      *            The new type (ShopType.BUYING or ShopType.SELLING)
@@ -533,7 +621,7 @@ public class ContainerShop implements Shop {
     @Override
     public void setShopType(ShopType shopType) {
         this.shopType = shopType;
-        this.setSignText();
+        plugin.getSignRefresher().refresh(this);
     }
 
     /**
@@ -555,7 +643,7 @@ public class ContainerShop implements Shop {
                 if (isSelling()) {
                     lines[1] = MsgUtil.getMessage("signs.selling", "" + getRemainingStock());
                 }
-                lines[2] = Util.getName(item);
+                lines[2] = matcher.getName();
                 lines[3] = MsgUtil.getMessage("signs.price", "" + getPrice());
             } else {
                 lines[0] = "Shop is Closed";
@@ -582,7 +670,7 @@ public class ContainerShop implements Shop {
      * @return the name of the shop owner or "Uknown" if the player doesnt exist
      */
     public String getOwnerName() {
-        String shopOwner = getOwner().getName();
+        String shopOwner = plugin.getOwnerCache().getName(ownerId);
         if (shopOwner == null || shopOwner.isEmpty()) {
             // we cannot retrieve the shop owner which means they have never visited this server
             //no Player.dat exists. Disable the shop (but dont delete it)
@@ -607,17 +695,26 @@ public class ContainerShop implements Shop {
         }
 
         for (final Sign sign: getSigns()) {
+            boolean changed = false;
             for (int i = 0; i < lines.length; i++) {
-                sign.setLine(i, lines[i]);
+                final String line = lines[i] == null ? "" : lines[i];
+                if (!line.equals(sign.getLine(i))) {
+                    sign.setLine(i, line);
+                    changed = true;
+                }
             }
 
-            sign.update();
+            // Don't send the sign to players again if nothing changed
+            if (changed) {
+                sign.update();
+            }
         }
     }
 
     /**
      * Returns a list of signs that are attached to this shop (QuickShop and
-     * blank signs only)
+     * blank signs only). Which blocks they are on is remembered, so only the
+     * signs themselves are looked at until {@link #invalidateSigns()}.
      * 
      * @return a list of signs that are attached to this shop (QuickShop and
      *         blank signs only)
@@ -630,13 +727,26 @@ public class ContainerShop implements Shop {
             return signs;
         }
 
-        final Block[] blocks = new Block[4];
-        blocks[0] = loc.getBlock().getRelative(1, 0, 0);
-        blocks[1] = loc.getBlock().getRelative(-1, 0, 0);
-        blocks[2] = loc.getBlock().getRelative(0, 0, 1);
-        blocks[3] = loc.getBlock().getRelative(0, 0, -1);
+        final Block block = loc.getBlock();
+        if (signSides >= 0) {
+            for (int i = 0; i < SIDE_OFFSETS.length; i++) {
+                if ((signSides & 1 << i) == 0) {
+                    continue;
+                }
+                final BlockState state = block.getRelative(SIDE_OFFSETS[i][0], 0, SIDE_OFFSETS[i][1]).getState();
+                if (!(state instanceof Sign)) {
+                    // It went without an event telling us, look again
+                    signSides = -1;
+                    return getSigns();
+                }
+                signs.add((Sign) state);
+            }
+            return signs;
+        }
 
-        for (final Block b: blocks) {
+        byte sides = 0;
+        for (int i = 0; i < SIDE_OFFSETS.length; i++) {
+            final Block b = block.getRelative(SIDE_OFFSETS[i][0], 0, SIDE_OFFSETS[i][1]);
             if(!Util.checkIfSign(b)) {
                 continue;
             }
@@ -647,6 +757,7 @@ public class ContainerShop implements Shop {
 
             if (sign.getLine(0).contains("[QuickShop") || sign.getLine(0).startsWith(ChatColor.DARK_RED + "")) {
                 signs.add(sign);
+                sides |= 1 << i;
             } else {
                 boolean text = false;
                 for (final String s: sign.getLines()) {
@@ -658,15 +769,22 @@ public class ContainerShop implements Shop {
 
                 if (!text) {
                     signs.add(sign);
+                    sides |= 1 << i;
                 }
             }
         }
+        signSides = sides;
         return signs;
     }
 
+    @Override
+    public void invalidateSigns() {
+        signSides = -1;
+    }
+
     @Override
     public boolean isAttached(Block b) {
-        if(!(b.getState().getBlockData() instanceof WallSign)) {
+        if(!(b.getBlockData() instanceof WallSign)) {
             new IllegalArgumentException(b + " Is not a sign!").printStackTrace();
         }
         return getLocation().getBlock().equals(Util.getAttached(b));
@@ -680,12 +798,7 @@ public class ContainerShop implements Shop {
      */
     @Override
     public String getDataName() {
-        try {
-            return Util.getName(getItem());
-        } catch (InvalidShopException e) {
-            QuickShop.instance.log(e.getMessage());
-            return "ERROR ITEM INVALID";
-        }
+        return matcher.getName();
     }
 
     /**
@@ -724,13 +837,13 @@ public class ContainerShop implements Shop {
         final int y = getLocation().getBlockY();
         final int z = getLocation().getBlockZ();
         final String world = getLocation().getWorld().getName();
-        plugin.getDB().execute(
-                "DELETE FROM shops WHERE x = '" + x + "' AND y = '" + y + "' AND z = '" + z + "' AND world = '" + world
-                        + "'");
+        plugin.getDB().executeOrdered(ShopManager.databaseKey(getLocation()),
+                "DELETE FROM shops WHERE x = ? AND y = ? AND z = ? AND world = ?", x, y, z, world);
 
         // Refund if necessary
-        if (plugin.getConfig().getBoolean("shop.refund")) {
-            plugin.getEcon().deposit(getOwner(), plugin.getConfig().getDouble("shop.cost"));
+        final Settings settings = plugin.getSettings();
+        if (settings.refund) {
+            plugin.getEcon().deposit(getOwner(), settings.shopCost);
         }
 
         if (fromMemory) {
@@ -756,6 +869,34 @@ public class ContainerShop implements Shop {
         this.closed = closed;
     }
 
+    /**
+     * Has the items left lying around the shop cleared up, along with those
+     * of the other shops in its chunk.
+     */
+    private void sweepLater() {
+        if (plugin.getItemWatcher() != null) {
+            plugin.getItemWatcher().sweepLater(loc);
+        }
+    }
+
+    /**
+     * Removes the display item, until a player comes near enough to see it.
+     */
+    void hideDisplay() {
+        if (displayItem != null) {
+            displayItem.remove();
+            displayItem = null;
+        }
+    }
+
+    /**
+     * Spawns the display item of a shop which has loaded, once its turn in
+     * the {@link DisplaySpawnQueue} comes.
+     */
+    void loadDisplay() {
+        checkDisplay();
+    }
+
     private void checkDisplay() {
         if (!plugin.display) {
             return;
@@ -763,14 +904,16 @@ public class ContainerShop implements Shop {
         if (getLocation().getWorld() == null) {
             return; // not loaded
         }
+        final DisplayVisibility visibility = plugin.getDisplayVisibility();
+        if (visibility != null && !visibility.isVisible(this)) {
+            // Nobody is close enough to see it
+            hideDisplay();
+            return;
+        }
         final boolean trans = getLocation().clone().add(0.5, 1.2, 0.5).getBlock().getType().isTransparent();
         if (trans && getDisplayItem() == null) {
-            try {
-                displayItem = new DisplayItem(this, getItem());
-                getDisplayItem().spawn();
-            }catch (InvalidShopException e){
-                QuickShop.instance.log(e.getMessage());
-            }
+            displayItem = new DisplayItem(this, item);
+            getDisplayItem().spawn();
         }
 
         if (getDisplayItem() != null) {
@@ -796,7 +939,7 @@ public class ContainerShop implements Shop {
             }
             if (disItem.getItem() == null) {
                 disItem.spawn();
-                disItem.removeDupe();
+                sweepLater();
                 return;
             }
 
@@ -804,7 +947,7 @@ public class ContainerShop implements Shop {
 
             if (item.getTicksLived() > 5000 || !item.isValid() || item.isDead()) {
                 disItem.respawn();
-                disItem.removeDupe();
+                sweepLater();
             } else if (item.getLocation().distanceSquared(dispLoc) > 1) {
                 item.teleport(dispLoc, TeleportCause.PLUGIN);
             }
@@ -816,6 +959,12 @@ public class ContainerShop implements Shop {
 
     @Override
     public void onUnload() {
+        if (plugin.getItemWatcher() != null) {
+            plugin.getItemWatcher().unwatch(this);
+        }
+        if (plugin.getDisplaySpawnQueue() != null) {
+            plugin.getDisplaySpawnQueue().remove(this);
+        }
         if (getDisplayItem() != null) {
             getDisplayItem().remove();
             displayItem = null;
@@ -824,12 +973,24 @@ public class ContainerShop implements Shop {
 
     @Override
     public void onLoad() {
-        checkDisplay();
+        // The chest may have changed while we weren't watching it
+        invalidateCounts();
+        invalidateSigns();
+        partnerSide = findPartner();
+        if (plugin.getDisplaySpawnQueue() != null) {
+            // Spread out over the next few ticks, with many chunks loading
+            plugin.getDisplaySpawnQueue().add(this);
+        } else {
+            checkDisplay();
+        }
+        if (plugin.getItemWatcher() != null) {
+            plugin.getItemWatcher().watch(this);
+        }
     }
 
     @Override
     public void onClick() {
-        this.setSignText();
+        plugin.getSignRefresher().refresh(this);
     }
 
     @Override
@@ -1,20 +1,20 @@
 package org.maxgamer.QuickShop.Shop;
 
-import java.util.Collections;
-import java.util.UUID;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Chunk;
 import org.bukkit.Location;
+import org.bukkit.NamespacedKey;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Item;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataType;
 import org.bukkit.util.Vector;
 import org.maxgamer.QuickShop.QuickShop;
-import org.maxgamer.QuickShop.exceptions.InvalidShopException;
+import org.maxgamer.QuickShop.Util.LongObjectMap;
 
 /**
  * @author Netherfoam
@@ -22,6 +22,13 @@ import org.maxgamer.QuickShop.exceptions.InvalidShopException;
  *         interacted with.
  */
 public class DisplayItem {
+    /** Marks display items, both the Item and its ItemStack */
+    private static final NamespacedKey             KEY  = new NamespacedKey(QuickShop.instance, "display");
+    /** The display items spawned since the server started, by entity id */
+    private static final LongObjectMap<DisplayItem> live = new LongObjectMap<>();
+    /** The size of live at which entries for items which are gone are removed */
+    private static int                              pruneAt = 64;
+
     private final Shop      shop;
     private final ItemStack iStack;
     private Item            item;
@@ -35,17 +42,92 @@ public class DisplayItem {
      *            The shop (See Shop)
      * @param iStack
      *            The item stack to clone properties of the display item from.
+     *            It is only cloned when the item is spawned, so it must not
+     *            change.
      */
     public DisplayItem(Shop shop, ItemStack iStack) {
         this.shop = shop;
-        this.iStack = iStack.clone();
+        this.iStack = iStack;
         // this.displayLoc = shop.getLocation().clone().add(0.5, 1.2, 0.5);
     }
 
-    public static boolean isDisplayItem(Item item){
-        ItemMeta meta = item.getItemStack().getItemMeta();
-        return meta.getDisplayName().contains("QuickShop");
+    /**
+     * Checks whether an item entity is a display item. Display items spawned
+     * since the server started are found by their entity id alone, and older
+     * ones by the tag on the entity. Untagged display items from older
+     * versions can only be told apart by their item, which is only copied for
+     * items that can never be picked up, as display items can't.
+     *
+     * @param item
+     *            The item entity
+     * @return true if it is a display item
+     */
+    public static boolean isDisplayItem(Item item) {
+        if (live.containsKey(item.getEntityId())
+                || item.getPersistentDataContainer().has(KEY, PersistentDataType.BYTE)) {
+            return true;
+        }
+        // The server caps the pickup delay display items get at this, and
+        // never counts it down
+        return item.getPickupDelay() >= Short.MAX_VALUE && isDisplayItem(item.getItemStack());
+    }
+
+    /**
+     * Stops remembering an item entity which is gone, such as one which has
+     * despawned.
+     *
+     * @param item
+     *            The item entity
+     */
+    public static void forget(Item item) {
+        live.remove(item.getEntityId());
+    }
+
+    /**
+     * Removes the entries for display items which died without being
+     * removed, such as ones burnt in lava. Done whenever live doubles in
+     * size, so it costs little for each item spawned.
+     */
+    private static void prune() {
+        final long[] gone = new long[live.size()];
+        int n = 0;
+        final LongObjectMap<DisplayItem>.KeyIterator it = live.keyIterator();
+        while (it.hasNext()) {
+            final long id = it.nextKey();
+            final Item item = it.value().item;
+            if (item == null || item.getEntityId() != id || !item.isValid()) {
+                gone[n++] = id;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            live.remove(gone[i]);
+        }
+        pruneAt = Math.max(64, live.size() * 2);
+    }
+
+    /**
+     * Checks whether an item is a display item, such as one that has ended up
+     * in an inventory.
+     *
+     * @param stack
+     *            The item, may be null
+     * @return true if it is a display item
+     */
+    public static boolean isDisplayItem(ItemStack stack) {
+        // Display items always have meta, so most items are ruled out
+        // without copying it
+        if (stack == null || !stack.hasItemMeta()) {
+            return false;
+        }
+        final ItemMeta meta = stack.getItemMeta();
+        if (meta.getPersistentDataContainer().has(KEY, PersistentDataType.BYTE)) {
+            return true;
+        }
+        // Display items spawned before they were tagged. Only the exact name,
+        // so items players have named aren't mistaken for them.
+        return meta.hasDisplayName() && meta.getDisplayName().equals(ChatColor.RED + "QuickShop");
     }
+
     /**
      * Spawns the dummy item on top of the shop.
      */
@@ -56,13 +138,19 @@ public class DisplayItem {
 
         final Location dispLoc = getDisplayLocation();
         
-        ItemMeta meta = iStack.getItemMeta();
+        final ItemStack stack = iStack.clone();
+        ItemMeta meta = stack.getItemMeta();
         if(meta != null) {
             meta.setDisplayName(ChatColor.RED + "QuickShop");
-            meta.setLore(Collections.singletonList(UUID.randomUUID().toString()));
+            meta.getPersistentDataContainer().set(KEY, PersistentDataType.BYTE, (byte) 1);
         }
-        iStack.setItemMeta(meta);
-        item = shop.getLocation().getWorld().dropItem(dispLoc, iStack);
+        stack.setItemMeta(meta);
+        item = shop.getLocation().getWorld().dropItem(dispLoc, stack);
+        item.getPersistentDataContainer().set(KEY, PersistentDataType.BYTE, (byte) 1);
+        if (live.size() >= pruneAt) {
+            prune();
+        }
+        live.put(item.getEntityId(), this);
         item.setVelocity(new Vector(0, 0.1, 0));
 
         if (QuickShop.instance.debug) {
@@ -83,47 +171,81 @@ public class DisplayItem {
      * Removes all items floating ontop of the chest
      * that aren't the display item.
      * @return true if we remove a dupe
+     * @deprecated Sweeps every shop in the chunk, use
+     *             {@link #removeDupes(Chunk, ShopChunkMap)} once instead
      */
+    @Deprecated
     public boolean removeDupe() {
-        if (shop.getLocation().getWorld() == null) {
+        final Location loc = shop.getLocation();
+        if (loc.getWorld() == null) {
             return false;
         }
+        final Chunk c = loc.getChunk();
         final QuickShop qs = (QuickShop) Bukkit.getPluginManager().getPlugin("QuickShop");
-        final Location displayLoc = shop.getLocation().getBlock().getRelative(0, 1, 0).getLocation();
-
-        boolean removed = false;
+        return removeDupes(c, qs.getShopManager().getChunkShops(c)) > 0;
+    }
 
-        final Chunk c = displayLoc.getChunk();
-        for (final Entity e: c.getEntities()) {
+    /**
+     * Removes the items lying in or just above the shops in a chunk which
+     * aren't their display items, looking through the chunk's entities once
+     * for all of the shops. Only items of the shop's type are removed, which
+     * covers display items left behind as well as the old type of item.
+     *
+     * @param chunk
+     *            The chunk, which must be loaded
+     * @param shops
+     *            The shops in the chunk, may be null
+     * @return The number of items removed
+     */
+    public static int removeDupes(Chunk chunk, ShopChunkMap shops) {
+        if (shops == null || shops.isEmpty()) {
+            return 0;
+        }
+        final QuickShop qs = QuickShop.instance;
+        int removed = 0;
+        for (final Entity e: chunk.getEntities()) {
             if (!(e instanceof Item)) {
                 continue;
             }
-            if (item != null && e.getEntityId() == item.getEntityId()) {
+            final Location eLoc = e.getLocation();
+            final int x = eLoc.getBlockX();
+            final int y = eLoc.getBlockY();
+            final int z = eLoc.getBlockZ();
+            // A shop's display item lies on the block above it
+            final Shop inside = shops.getShop(x, y, z);
+            final Shop below = shops.getShop(x, y - 1, z);
+            if (inside == null && below == null || isDisplayOf((Item) e, inside) || isDisplayOf((Item) e, below)) {
                 continue;
             }
-            if(isDisplayItem((Item)e))
-                continue;
-            final Location eLoc = e.getLocation().getBlock().getLocation();
-
-            if (eLoc.equals(displayLoc) || eLoc.equals(shop.getLocation())) {
-                final ItemStack near = ((Item) e).getItemStack();
-                // Do a rough match as to remove the old type of item
-                try {
-                    if (shop.getItem().getType() == near.getType()) {
-                        e.remove();
-                        removed = true;
-                        if (qs.debug) {
-                            qs.getLogger().log(Level.INFO, "Removed rogue item: " + near.getType());
-                        }
-                    }
-                }catch (InvalidShopException exceptiopn) {
-                    QuickShop.instance.log(exceptiopn.getMessage());
+
+            final ItemStack near = ((Item) e).getItemStack();
+            // Do a rough match as to remove the old type of item
+            if (isType(inside, near) || isType(below, near)) {
+                e.remove();
+                removed++;
+                if (qs.debug) {
+                    qs.getLogger().log(Level.INFO, "Removed rogue item: " + near.getType());
                 }
             }
         }
         return removed;
     }
 
+    private static boolean isDisplayOf(Item item, Shop shop) {
+        if (!(shop instanceof ContainerShop)) {
+            return false;
+        }
+        final DisplayItem display = ((ContainerShop) shop).getDisplayItem();
+        return display != null && display.item != null && display.item.getEntityId() == item.getEntityId();
+    }
+
+    private static boolean isType(Shop shop, ItemStack near) {
+        if (shop == null) {
+            return false;
+        }
+        return ((ContainerShop) shop).getMaterial() == near.getType();
+    }
+
     /**
      * Removes the display item.
      */
@@ -131,6 +253,7 @@ public class DisplayItem {
         if (item == null) {
             return;
         }
+        live.remove(item.getEntityId());
         item.remove();
     }
 
@@ -0,0 +1,143 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.maxgamer.QuickShop.QuickShop;
+
+/**
+ * Spawns the display items of shops as their chunks load, a few each tick,
+ * instead of all of them in the tick the chunks loaded. Flying into a large
+ * market can load hundreds of chunks, with thousands of shops, at once.
+ *
+ * Shops closest to a player are spawned first. Shops whose chunk unloads
+ * before they are reached are dropped. Runs on the server thread, once a
+ * tick.
+ */
+public class DisplaySpawnQueue implements Runnable {
+    /** How many ticks the order is kept before shops are sorted again */
+    private static final int       RESORT_TICKS = 20;
+
+    private final QuickShop        plugin;
+    private final int              quota;
+
+    /** Shops waiting for their display item */
+    private final Set<Shop>        pending      = Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * The pending shops, closest to a player first, as of the last sort.
+     * Shops no longer pending are dropped when they are reached.
+     */
+    private final ArrayDeque<Shop> order        = new ArrayDeque<>();
+    /** Whether shops were added since the last sort */
+    private boolean                added;
+    private int                    sinceSort;
+
+    /**
+     * @param plugin
+     *            The plugin
+     * @param quota
+     *            The most display items to spawn each tick
+     */
+    public DisplaySpawnQueue(QuickShop plugin, int quota) {
+        this.plugin = plugin;
+        this.quota = Math.max(1, quota);
+    }
+
+    /**
+     * Queues a shop to have its display item spawned.
+     *
+     * @param shop
+     *            The shop, which has just loaded
+     */
+    public void add(Shop shop) {
+        if (pending.add(shop)) {
+            added = true;
+        }
+    }
+
+    /**
+     * Stops a shop having its display item spawned, because it unloaded.
+     *
+     * @param shop
+     *            The shop
+     */
+    public void remove(Shop shop) {
+        pending.remove(shop);
+    }
+
+    /**
+     * @return The number of shops waiting for their display item
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    @Override
+    public void run() {
+        if (pending.isEmpty()) {
+            order.clear();
+            return;
+        }
+        sinceSort++;
+        if (order.isEmpty() || added && sinceSort >= RESORT_TICKS) {
+            sort();
+        }
+
+        final ShopManager manager = plugin.getShopManager();
+        int spawned = 0;
+        Shop shop;
+        while (spawned < quota && (shop = order.poll()) != null) {
+            if (!pending.remove(shop)) {
+                continue; // Unloaded, or already done
+            }
+            // Skip shops removed since they were queued
+            if (manager.getShop(shop.getLocation()) == shop && shop instanceof ContainerShop) {
+                ((ContainerShop) shop).loadDisplay();
+                spawned++;
+            }
+        }
+    }
+
+    /**
+     * Puts the pending shops in order of how close they are to the nearest
+     * player in their world.
+     */
+    private void sort() {
+        final Map<World, List<Location>> players = new HashMap<>();
+        for (final Player p : Bukkit.getOnlinePlayers()) {
+            players.computeIfAbsent(p.getWorld(), k -> new ArrayList<>()).add(p.getLocation());
+        }
+
+        final List<Shop> shops = new ArrayList<>(pending);
+        final Map<Shop, Double> distances = new IdentityHashMap<>(shops.size());
+        for (final Shop shop : shops) {
+            final Location loc = shop.getLocation();
+            final List<Location> near = players.get(loc.getWorld());
+            double closest = Double.MAX_VALUE;
+            if (near != null) {
+                for (final Location p : near) {
+                    final double dx = p.getX() - loc.getX();
+                    final double dz = p.getZ() - loc.getZ();
+                    closest = Math.min(closest, dx * dx + dz * dz);
+                }
+            }
+            distances.put(shop, closest);
+        }
+        shops.sort((a, b) -> Double.compare(distances.get(a), distances.get(b)));
+
+        order.clear();
+        order.addAll(shops);
+        added = false;
+        sinceSort = 0;
+    }
+}
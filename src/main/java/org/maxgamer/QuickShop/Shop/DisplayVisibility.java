@@ -0,0 +1,99 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.maxgamer.QuickShop.QuickShop;
+import org.maxgamer.QuickShop.Util.Util;
+
+/**
+ * Only lets shops near players have display items. Every display item is an
+ * entity the server ticks, and chunks can stay loaded with nobody around, so
+ * without this the number of them grows with the number of shops rather than
+ * with the number of players.
+ *
+ * Every so often the shops within the radius of each player are looked up in
+ * the shop index. Shops coming into view have their display item queued in
+ * the {@link DisplaySpawnQueue}, and shops no player has been near for the
+ * grace period have theirs removed. Runs on the server thread.
+ */
+public class DisplayVisibility implements Runnable {
+    private final QuickShop       plugin;
+    private final double          radius;
+    private final int             interval;
+    private final long            grace;
+
+    /** The shops which may show their display item, and when they were last near a player */
+    private final Map<Shop, Long> seen = new IdentityHashMap<>();
+    /** Ticks since the first sweep */
+    private long                  now;
+
+    /**
+     * @param plugin
+     *            The plugin
+     * @param radius
+     *            How close a player must be for a shop to show its display
+     *            item, in blocks
+     * @param interval
+     *            The ticks between runs
+     * @param grace
+     *            The ticks a shop keeps its display item after the last
+     *            player has left
+     */
+    public DisplayVisibility(QuickShop plugin, double radius, int interval, long grace) {
+        this.plugin = plugin;
+        this.radius = radius;
+        this.interval = Math.max(1, interval);
+        this.grace = Math.max(0, grace);
+    }
+
+    /**
+     * @param shop
+     *            The shop
+     * @return true if a player has been near enough to the shop recently for
+     *         it to show its display item
+     */
+    public boolean isVisible(Shop shop) {
+        return seen.containsKey(shop);
+    }
+
+    /**
+     * @return The number of shops which may show their display item
+     */
+    public int getVisible() {
+        return seen.size();
+    }
+
+    @Override
+    public void run() {
+        now += interval;
+        final ShopManager manager = plugin.getShopManager();
+        final DisplaySpawnQueue spawner = plugin.getDisplaySpawnQueue();
+        for (final Player p : Bukkit.getOnlinePlayers()) {
+            for (final Shop shop : manager.getShopsWithin(p.getLocation(), radius, null)) {
+                // Shops in unloaded chunks spawn theirs when they load
+                if (seen.put(shop, now) == null && Util.isLoaded(shop.getLocation())) {
+                    spawner.add(shop);
+                }
+            }
+        }
+
+        final Iterator<Entry<Shop, Long>> it = seen.entrySet().iterator();
+        while (it.hasNext()) {
+            final Entry<Shop, Long> entry = it.next();
+            if (now - entry.getValue() <= grace) {
+                continue;
+            }
+            it.remove();
+            final Shop shop = entry.getKey();
+            spawner.remove(shop);
+            if (shop instanceof ContainerShop) {
+                ((ContainerShop) shop).hideDisplay();
+            }
+        }
+    }
+}
@@ -67,7 +67,7 @@ public class Info {
         if (this.shop.getShopType() != shop.getShopType()) {
             return true;
         }
-        if (!this.shop.getOwner().equals(shop.getOwner())) {
+        if (!this.shop.getOwnerId().equals(shop.getOwnerId())) {
             return true;
         }
         try {
@@ -0,0 +1,80 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.inventory.ItemStack;
+import org.maxgamer.QuickShop.Util.ItemCodec;
+import org.maxgamer.QuickShop.Util.ItemMatcher;
+
+/**
+ * Hands out one shared ItemStack for every shop trading the same item, so
+ * ten thousand diamond shops hold one diamond instead of ten thousand.
+ * Items are told apart by their {@link ItemCodec} bytes. Each item comes
+ * with an {@link ItemMatcher}, shared the same way.
+ *
+ * The items handed out are shared, and must never be modified. Clone them
+ * first. Safe to use from any thread, since shops are loaded off the main
+ * thread.
+ */
+public class ItemPrototypeCache {
+    private final ConcurrentHashMap<ByteBuffer, ItemMatcher> prototypes = new ConcurrentHashMap<>();
+
+    /**
+     * @param item
+     *            The item to look up. It is never kept, so the caller may
+     *            still change it.
+     * @return The matcher for the shared copy of the item, which has an
+     *         amount of 1
+     */
+    public ItemMatcher intern(ItemStack item) {
+        final ItemStack copy = item.clone();
+        copy.setAmount(1);
+        final byte[] key;
+        try {
+            key = ItemCodec.encode(copy);
+        } catch (final IOException e) {
+            // Only YAML can store it, so it can't be shared
+            return new ItemMatcher(copy);
+        }
+        final ByteBuffer wrapped = ByteBuffer.wrap(key);
+        final ItemMatcher existing = prototypes.get(wrapped);
+        if (existing != null) {
+            return existing;
+        }
+        final ItemMatcher matcher = new ItemMatcher(copy);
+        final ItemMatcher raced = prototypes.putIfAbsent(wrapped, matcher);
+        return raced == null ? matcher : raced;
+    }
+
+    /**
+     * Looks up an encoded item. Items which are already cached aren't decoded
+     * at all.
+     *
+     * @param data
+     *            The item, as written by {@link ItemCodec#encode(ItemStack)}
+     * @return The matcher for the shared copy of the item, which has an
+     *         amount of 1
+     * @throws IOException
+     *             If the item isn't cached and can't be decoded
+     */
+    public ItemMatcher intern(byte[] data) throws IOException {
+        final ItemMatcher cached = prototypes.get(ByteBuffer.wrap(data));
+        if (cached != null) {
+            return cached;
+        }
+        return intern(ItemCodec.decode(data));
+    }
+
+    /**
+     * @return The number of distinct items cached
+     */
+    public int size() {
+        return prototypes.size();
+    }
+
+    void clear() {
+        prototypes.clear();
+    }
+}
@@ -0,0 +1,147 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+/**
+ * Remembers who owns shops, so shop code doesn't ask Bukkit for the same
+ * player and name on every trade and sign refresh. Looking up an offline
+ * player's name can mean reading the user cache or their player file.
+ *
+ * Online players are kept until they quit, and are kept up to date by
+ * {@link #join(Player)} and {@link #quit(Player)}. Offline owners are kept in
+ * a map of limited size, forgetting the ones least recently asked for. A
+ * Player object is never kept there, since it holds on to its entity and
+ * world.
+ */
+public class OwnerCache {
+    /**
+     * An offline owner, along with their name, which may be null. The
+     * OfflinePlayer is null until it is first asked for.
+     */
+    private static final class Profile {
+        private final OfflinePlayer player;
+        private final String        name;
+
+        private Profile(OfflinePlayer player, String name) {
+            this.player = player;
+            this.name = name;
+        }
+    }
+
+    private final Map<UUID, Player>           online = new HashMap<>();
+    private final LinkedHashMap<UUID, Profile> offline;
+
+    /**
+     * @param maxOffline
+     *            The most offline owners to remember
+     */
+    public OwnerCache(final int maxOffline) {
+        final int max = Math.max(1, maxOffline);
+        offline = new LinkedHashMap<UUID, Profile>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Profile> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * @param id
+     *            The owner's UUID
+     * @return The owner. This is the online Player if they are online.
+     */
+    public synchronized OfflinePlayer get(UUID id) {
+        final Player player = online.get(id);
+        if (player != null) {
+            return player;
+        }
+        return lookup(id).player;
+    }
+
+    /**
+     * @param id
+     *            The owner's UUID
+     * @return The owner's name, or null if they have never played here
+     */
+    public synchronized String getName(UUID id) {
+        final Player player = online.get(id);
+        if (player != null) {
+            return player.getName();
+        }
+        final Profile known = offline.get(id);
+        return known != null ? known.name : lookup(id).name;
+    }
+
+    /**
+     * @param id
+     *            The owner's UUID
+     * @return The owner if they are online, otherwise null
+     */
+    public synchronized Player getOnline(UUID id) {
+        return online.get(id);
+    }
+
+    /**
+     * Should be called when a player joins, and for every online player when
+     * the plugin is enabled.
+     *
+     * @param player
+     *            The player who joined
+     */
+    public synchronized void join(Player player) {
+        online.put(player.getUniqueId(), player);
+        // They may have changed their name since
+        offline.remove(player.getUniqueId());
+    }
+
+    /**
+     * Should be called when a player quits, so the Player isn't kept.
+     *
+     * @param player
+     *            The player who quit
+     */
+    public synchronized void quit(Player player) {
+        if (online.remove(player.getUniqueId()) != null) {
+            // They are still in the player list until the event is over, so
+            // Bukkit would hand back this same Player
+            offline.put(player.getUniqueId(), new Profile(null, player.getName()));
+        }
+    }
+
+    /**
+     * Forgets every owner.
+     */
+    public synchronized void clear() {
+        online.clear();
+        offline.clear();
+    }
+
+    private Profile lookup(UUID id) {
+        final Profile known = offline.get(id);
+        if (known != null && known.player != null) {
+            return known;
+        }
+        final OfflinePlayer player = Bukkit.getOfflinePlayer(id);
+        final String name = known != null ? known.name : player.getName();
+        if (player instanceof Player) {
+            // Still in the player list, such as while they quit. Only keep
+            // their name until they are gone.
+            if (known == null) {
+                offline.put(id, new Profile(null, name));
+            }
+            return new Profile(player, name);
+        }
+        final Profile profile = new Profile(player, name);
+        offline.put(id, profile);
+        return profile;
+    }
+}
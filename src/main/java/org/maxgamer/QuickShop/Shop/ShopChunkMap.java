@@ -0,0 +1,132 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.bukkit.Location;
+import org.maxgamer.QuickShop.Util.LongObjectMap;
+
+/**
+ * The shops inside a single chunk, keyed by their packed block position.
+ *
+ * Lookups by block coordinate don't allocate and don't touch the world. The
+ * {@code Map<Location, Shop>} interface is a read only view kept for callers
+ * of {@link ShopManager#getChunkShops(org.bukkit.Chunk)}. Only the ShopManager
+ * should modify it.
+ */
+public class ShopChunkMap extends AbstractMap<Location, Shop> {
+    private final LongObjectMap<Shop> shops = new LongObjectMap<>(2);
+
+    /**
+     * Packs a block position into a single long. 26 bits for x and z, 12 bits
+     * for y, which covers every position a world border allows.
+     *
+     * @param x
+     *            The block x coordinate
+     * @param y
+     *            The block y coordinate
+     * @param z
+     *            The block z coordinate
+     * @return The packed key
+     */
+    public static long blockKey(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    /**
+     * @return The shop at the given block, or null if there is none.
+     */
+    public Shop getShop(int x, int y, int z) {
+        return shops.get(blockKey(x, y, z));
+    }
+
+    Shop addShop(Shop shop) {
+        final Location loc = shop.getLocation();
+        return shops.put(blockKey(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ()), shop);
+    }
+
+    Shop removeShop(int x, int y, int z) {
+        return shops.remove(blockKey(x, y, z));
+    }
+
+    /**
+     * @return A copy of the shops in this chunk, safe to use while shops are
+     *         being added or removed.
+     */
+    public Shop[] toArray() {
+        final Object[] raw = shops.toArray();
+        final Shop[] out = new Shop[raw.length];
+        System.arraycopy(raw, 0, out, 0, raw.length);
+        return out;
+    }
+
+    @Override
+    public Shop get(Object key) {
+        if (!(key instanceof Location)) {
+            return null;
+        }
+        final Location loc = (Location) key;
+        return getShop(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return shops.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return shops.isEmpty();
+    }
+
+    @Override
+    public Collection<Shop> values() {
+        return new AbstractCollection<Shop>() {
+            @Override
+            public Iterator<Shop> iterator() {
+                return shops.iterator();
+            }
+
+            @Override
+            public int size() {
+                return shops.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Location, Shop>> entrySet() {
+        return new AbstractSet<Entry<Location, Shop>>() {
+            @Override
+            public Iterator<Entry<Location, Shop>> iterator() {
+                final Iterator<Shop> it = shops.iterator();
+                return new Iterator<Entry<Location, Shop>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Entry<Location, Shop> next() {
+                        final Shop shop = it.next();
+                        return new SimpleImmutableEntry<>(shop.getLocation(), shop);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return shops.size();
+            }
+        };
+    }
+}
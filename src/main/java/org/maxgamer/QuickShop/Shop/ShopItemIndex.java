@@ -0,0 +1,111 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An inverted index from the item a shop trades to the shop. Shops are indexed
+ * by each word of their lower case item name (The same name /qs find used to
+ * compare against), so searches only look at shops which could match instead
+ * of every shop in range.
+ *
+ * Only the ShopManager should modify it.
+ */
+public class ShopItemIndex {
+    private final HashMap<String, Set<Shop>>    byToken = new HashMap<>();
+    /** The lower case item name each shop was indexed under */
+    private final IdentityHashMap<Shop, String> names   = new IdentityHashMap<>();
+
+    /**
+     * Splits a lower case item name into the words it is indexed under.
+     */
+    private static String[] tokenize(String name) {
+        return name.split("[^\\p{L}\\p{N}]+");
+    }
+
+    void add(Shop shop) {
+        final String name = shop.getDataName().toLowerCase();
+        if (names.put(shop, name) != null) {
+            return;
+        }
+        for (final String token: tokenize(name)) {
+            if (!token.isEmpty()) {
+                byToken.computeIfAbsent(token, k -> new HashSet<>(4)).add(shop);
+            }
+        }
+    }
+
+    void remove(Shop shop) {
+        final String name = names.remove(shop);
+        if (name == null) {
+            return;
+        }
+        for (final String token: tokenize(name)) {
+            final Set<Shop> withToken = byToken.get(token);
+            if (withToken != null && withToken.remove(shop) && withToken.isEmpty()) {
+                byToken.remove(token);
+            }
+        }
+    }
+
+    void clear() {
+        byToken.clear();
+        names.clear();
+    }
+
+    /**
+     * Finds every shop whose item name contains the given text, ignoring case.
+     * Candidates are the shops with a word containing the longest word of the
+     * search, so only the distinct words are scanned and the full name is
+     * only compared for a handful of shops. The search may start and end
+     * anywhere, "sword" finds Diamond Sword and "ngot" finds Iron Ingot.
+     *
+     * @param search
+     *            The text to search for, such as "iron ingot"
+     * @return A new list of matching shops
+     */
+    public List<Shop> find(String search) {
+        final String lookFor = search.toLowerCase();
+        final List<Shop> found = new ArrayList<>();
+
+        String longest = "";
+        for (final String token: tokenize(lookFor)) {
+            if (token.length() > longest.length()) {
+                longest = token;
+            }
+        }
+
+        if (longest.isEmpty()) {
+            // Nothing to narrow it down with, such as a search for "_"
+            for (final Map.Entry<Shop, String> entry: names.entrySet()) {
+                if (entry.getValue().contains(lookFor)) {
+                    found.add(entry.getKey());
+                }
+            }
+            return found;
+        }
+
+        // A run of letters in the search can't span two words of a name, so
+        // any matching name has a word containing the longest one
+        final List<Set<Shop>> candidates = new ArrayList<>();
+        for (final Map.Entry<String, Set<Shop>> entry: byToken.entrySet()) {
+            if (entry.getKey().contains(longest)) {
+                candidates.add(entry.getValue());
+            }
+        }
+        final Set<Shop> seen = candidates.size() > 1 ? new HashSet<>() : null;
+        for (final Set<Shop> withToken: candidates) {
+            for (final Shop shop: withToken) {
+                if ((seen == null || seen.add(shop)) && names.get(shop).contains(lookFor)) {
+                    found.add(shop);
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,366 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+import org.maxgamer.QuickShop.QuickShop;
+import org.maxgamer.QuickShop.Util.ItemMatcher;
+import org.maxgamer.QuickShop.Util.Util;
+
+/**
+ * Loads shops from the database without blocking the server.
+ *
+ * Rows are streamed on an async task, using a connection of its own, and
+ * their items are deserialized on a fork join pool. The shops are made and
+ * added to the ShopManager on the server thread, spending at most tickBudget
+ * each tick. Shops in chunks which aren't loaded yet have their block checked
+ * when the chunk loads. Shops in worlds which aren't loaded are skipped.
+ *
+ * Loading must be cancelled before the database is closed, such as when the
+ * plugin is disabled part way through.
+ */
+public class ShopLoader implements Runnable {
+    /** The most rows waiting to be deserialized at once */
+    private static final int MAX_IN_FLIGHT = 4096;
+
+    private final QuickShop                      plugin;
+    private final int                            fetchSize;
+    private final long                           tickBudget;
+
+    private final ForkJoinPool                   pool;
+    private final Semaphore                      inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final ConcurrentLinkedQueue<Row>     loaded   = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger                  errors   = new AtomicInteger();
+    /** Whether the shops table has the itemData column */
+    private volatile boolean                     hasItemData;
+    /** Set once every row has been read and deserialized */
+    private volatile boolean                     done;
+    private volatile boolean                     cancelled;
+    /** Set once the reader has started, after which it must be waited for */
+    private volatile boolean                     reading;
+    /** The query being read, so it can be cancelled */
+    private volatile PreparedStatement           query;
+    /** Counted down once the reader has stopped */
+    private final CountDownLatch                 stopped  = new CountDownLatch(1);
+
+    private BukkitTask                           task;
+    private long                                 started;
+    private int                                  count;
+    /** The shops skipped because their world isn't loaded */
+    private int                                  skipped;
+    private final HashSet<String>                missingWorlds = new HashSet<>();
+
+    /** A row of the shops table, and its deserialized item */
+    private static class Row {
+        final int       x;
+        final int       y;
+        final int       z;
+        final String    world;
+        final String    itemConfig;
+        /** The binary item, null if it hasn't been written yet */
+        final byte[]    itemData;
+        final String    ownerId;
+        final double    price;
+        final int       type;
+        final boolean   unlimited;
+        ItemMatcher     item;
+        UUID            owner;
+        ShopType        shopType;
+
+        Row(ResultSet rs, boolean hasItemData) throws SQLException {
+            x = rs.getInt("x");
+            y = rs.getInt("y");
+            z = rs.getInt("z");
+            world = rs.getString("world");
+            itemConfig = rs.getString("itemConfig");
+            itemData = hasItemData ? rs.getBytes("itemData") : null;
+            ownerId = rs.getString("ownerId");
+            price = rs.getDouble("price");
+            type = rs.getInt("type");
+            unlimited = rs.getBoolean("unlimited");
+        }
+    }
+
+    /**
+     * @param plugin
+     *            The plugin
+     * @param fetchSize
+     *            How many rows the database should send at a time
+     * @param tickBudget
+     *            The most time to spend adding shops each tick, in
+     *            milliseconds
+     */
+    public ShopLoader(QuickShop plugin, int fetchSize, long tickBudget) {
+        this.plugin = plugin;
+        this.fetchSize = fetchSize;
+        this.tickBudget = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickBudget));
+        final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        pool = new ForkJoinPool(threads, p -> {
+            final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("QuickShop loader " + t.getPoolIndex());
+            t.setContextClassLoader(QuickShop.class.getClassLoader());
+            return t;
+        }, null, false);
+    }
+
+    /**
+     * Starts loading shops. New shops can't be created until it is done.
+     */
+    public void start() {
+        plugin.getLogger().info("Loading shops from database...");
+        started = System.currentTimeMillis();
+        plugin.getShopManager().setLoading(true);
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this, 1, 1);
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, this::read);
+    }
+
+    /**
+     * Stops loading, dropping any shops which haven't been added yet. Waits
+     * a little for the reader to stop, so it is done with the connection
+     * before the database is closed.
+     */
+    public void cancel() {
+        if (done && loaded.isEmpty() || cancelled) {
+            return;
+        }
+        cancelled = true;
+        if (task != null) {
+            task.cancel();
+        }
+        final PreparedStatement ps = query;
+        if (ps != null) {
+            try {
+                ps.cancel();
+            } catch (final SQLException ignored) {
+                // It stops at the next row anyway
+            }
+        }
+        try {
+            // If the reader hasn't started, it will see it was cancelled
+            if (reading && !stopped.await(5, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("The shop loader didn't stop in time.");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        loaded.clear();
+        plugin.getShopManager().setLoading(false);
+        plugin.getLogger().info("Stopped loading shops after " + count + " shops.");
+    }
+
+    /**
+     * Streams the shops table, handing each row to the pool. Runs async, on
+     * its own connection so the server thread can keep using the shared one.
+     */
+    private void read() {
+        reading = true;
+        if (cancelled) {
+            pool.shutdown();
+            stopped.countDown();
+            return;
+        }
+        try (Connection con = plugin.getDB().openConnection();
+                PreparedStatement ps = prepare(con)) {
+            query = ps;
+            ps.setFetchSize(fetchSize);
+            try (ResultSet rs = ps.executeQuery()) {
+                // Missing if the column couldn't be added
+                boolean hasItemData = false;
+                final ResultSetMetaData meta = rs.getMetaData();
+                for (int i = 1; i <= meta.getColumnCount(); i++) {
+                    hasItemData |= "itemData".equalsIgnoreCase(meta.getColumnName(i));
+                }
+                this.hasItemData = hasItemData;
+
+                while (!cancelled && rs.next()) {
+                    final Row row;
+                    try {
+                        row = new Row(rs, hasItemData);
+                    } catch (final SQLException e) {
+                        e.printStackTrace();
+                        plugin.getLogger().severe("Could not read a shop from the database!");
+                        continue;
+                    }
+                    inFlight.acquire();
+                    pool.execute(() -> {
+                        try {
+                            build(row);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            }
+        } catch (final SQLException e) {
+            if (!cancelled) {
+                e.printStackTrace();
+                plugin.getLogger().severe("Could not load shops.");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            query = null;
+            // Wait for the rows still being deserialized
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+            pool.shutdown();
+            done = true;
+            stopped.countDown();
+        }
+    }
+
+    private static PreparedStatement prepare(Connection con) throws SQLException {
+        if (con == null) {
+            throw new SQLException("Could not open a connection to read the shops with");
+        }
+        return con.prepareStatement("SELECT * FROM shops", ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+    }
+
+    /**
+     * Deserializes the item of a row. Runs on the pool, so it mustn't touch
+     * anything of Bukkit's.
+     * The binary item is used when there is one, otherwise the YAML item is
+     * read and the binary one written for next time. Shops trading the same
+     * item share one ItemStack, and only the first of them is decoded.
+     */
+    private void build(Row row) {
+        if (cancelled) {
+            return;
+        }
+        try {
+            final ItemPrototypeCache prototypes = plugin.getShopManager().getItemCache();
+            ItemMatcher item = null;
+            if (row.itemData != null) {
+                try {
+                    item = prototypes.intern(row.itemData);
+                } catch (final IOException e) {
+                    plugin.getLogger().warning("Bad item data at " + row.world + " (" + row.x + ", " + row.y + ", "
+                            + row.z + "), using itemConfig: " + e.getMessage());
+                }
+            }
+            if (item == null) {
+                final ItemStack stack = Util.deserialize(row.itemConfig);
+                if (stack != null) {
+                    item = prototypes.intern(stack);
+                    if (hasItemData) {
+                        migrate(row, item.getItem());
+                    }
+                }
+            }
+            if (item == null) {
+                QuickShop.instance.log("Invalid Shop in Database:");
+                QuickShop.instance.log("Coords: " + row.world + " (" + row.x + ", " + row.y + ", " + row.z + ")");
+                QuickShop.instance.log("Item: " + row.itemConfig);
+                delete(row);
+                return;
+            }
+            row.owner = UUID.fromString(row.ownerId);
+            row.shopType = ShopType.fromID(row.type);
+            row.item = item;
+            loaded.add(row);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            plugin.getLogger().severe(
+                    "Error loading a shop! Coords: " + row.world + " (" + row.x + ", " + row.y + ", " + row.z + ")...");
+            if (errors.incrementAndGet() < 3) {
+                plugin.getLogger().info("Deleting the shop...");
+                delete(row);
+            } else {
+                plugin.getLogger().severe(
+                        "Multiple errors in shops - Something seems to be wrong with your shops database! Please check it out immediately!");
+            }
+        }
+    }
+
+    private void migrate(Row row, ItemStack item) {
+        final byte[] data = Util.encodeItem(item);
+        if (data != null) {
+            plugin.getDB().executeOrdered(ShopManager.databaseKey(row.world, row.x, row.y, row.z),
+                    "UPDATE shops SET itemData = ? WHERE x = ? AND y = ? and z = ? and world = ?", data, row.x, row.y,
+                    row.z, row.world);
+        }
+    }
+
+    private void delete(Row row) {
+        plugin.getDB().executeOrdered(ShopManager.databaseKey(row.world, row.x, row.y, row.z),
+                "DELETE FROM shops WHERE x = ? AND y = ? and z = ? and world = ?", row.x, row.y, row.z, row.world);
+    }
+
+    /**
+     * Makes shops from the loaded rows and adds them to the ShopManager, until
+     * the tick budget runs out.
+     */
+    @Override
+    public void run() {
+        if (cancelled) {
+            return;
+        }
+        final boolean finished = done;
+        final ShopManager manager = plugin.getShopManager();
+        final long deadline = System.nanoTime() + tickBudget;
+        Row row;
+        while (System.nanoTime() < deadline && (row = loaded.poll()) != null) {
+            final World world = Bukkit.getWorld(row.world);
+            if (world == null) {
+                // Kept in the database, in case the world is loaded later
+                if (missingWorlds.add(row.world)) {
+                    plugin.getLogger().warning("Skipping the shops in " + row.world + ", which isn't loaded.");
+                }
+                skipped++;
+                continue;
+            }
+            final ContainerShop shop;
+            try {
+                shop = new ContainerShop(new Location(world, row.x, row.y, row.z), row.price, row.item, row.owner,
+                        row.shopType, row.unlimited);
+            } catch (final Exception e) {
+                e.printStackTrace();
+                plugin.getLogger().severe("Error loading a shop! Coords: " + row.world + " (" + row.x + ", "
+                        + row.y + ", " + row.z + ")...");
+                continue;
+            }
+            manager.loadShop(row.world, shop);
+
+            if (world.isChunkLoaded(row.x >> 4, row.z >> 4)) {
+                if (!manager.checkBlock(shop)) {
+                    continue;
+                }
+                shop.setSignText();
+                shop.onLoad();
+            } else {
+                // Checked once the chunk loads
+                manager.deferCheck(shop);
+            }
+            count++;
+        }
+
+        if (finished && loaded.isEmpty()) {
+            task.cancel();
+            manager.setLoading(false);
+            plugin.getLogger().info(
+                    "Loaded " + count + " shops in " + (System.currentTimeMillis() - started) + "ms.");
+            if (skipped > 0) {
+                plugin.getLogger().warning("Skipped " + skipped + " shops in worlds which aren't loaded: "
+                        + String.join(", ", missingWorlds));
+            }
+        }
+    }
+}
@@ -1,8 +1,17 @@
 package org.maxgamer.QuickShop.Shop;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
@@ -18,9 +27,13 @@ import org.bukkit.block.data.Directional;
 import org.bukkit.entity.Player;
 import org.bukkit.event.block.Action;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.inventory.DoubleChestInventory;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.block.data.type.WallSign;
 import org.maxgamer.QuickShop.QuickShop;
+import org.maxgamer.QuickShop.Settings;
 import org.maxgamer.QuickShop.Database.Database;
 import org.maxgamer.QuickShop.Util.MsgUtil;
 import org.maxgamer.QuickShop.Util.Util;
@@ -32,8 +45,13 @@ public class ShopManager {
     private final QuickShop plugin;
     private final HashMap<String, Info> actions = new HashMap<>(30);
 
-    private final HashMap<String, HashMap<ShopChunk, HashMap<Location, Shop>>> shops = new HashMap<>(
-            3);
+    private final HashMap<String, ShopWorldIndex> shops = new HashMap<>(3);
+    private final HashMap<UUID, Set<Shop>> owners = new HashMap<>();
+    private final ShopItemIndex items = new ShopItemIndex();
+    private final ItemPrototypeCache prototypes = new ItemPrototypeCache();
+    /** Shops loaded while their chunk wasn't, whose block hasn't been checked */
+    private final Set<Shop> unchecked = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean loading;
 
     public ShopManager(QuickShop plugin) {
         this.plugin = plugin;
@@ -62,10 +80,10 @@ public class ShopManager {
         }
         try {
             // Write it to the database
-            final String q = "INSERT INTO shops (ownerId, price, itemConfig, x, y, z, world, unlimited, type) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-            plugin.getDB().execute(q, shop.getOwner().getUniqueId().toString(), shop.getPrice(), Util.serialize(item), loc.getBlockX(),
+            final String q = "INSERT INTO shops (ownerId, price, itemConfig, x, y, z, world, unlimited, type, itemData) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            plugin.getDB().executeOrdered(databaseKey(loc), q, shop.getOwnerId().toString(), shop.getPrice(), Util.serialize(item), loc.getBlockX(),
                     loc.getBlockY(), loc.getBlockZ(), loc.getWorld().getName(), (shop.isUnlimited() ? 1 : 0),
-                    shop.getShopType().toID());
+                    shop.getShopType().toID(), Util.encodeItem(item));
 
             // Add it to the world
             addShop(loc.getWorld().getName(), shop);
@@ -75,6 +93,75 @@ public class ShopManager {
         }
     }
 
+    /**
+     * The key used to keep database statements for a shop in order.
+     * 
+     * @param loc
+     *            The location of the shop
+     * @return The key
+     */
+    static String databaseKey(Location loc) {
+        return databaseKey(loc.getWorld().getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+    }
+
+    static String databaseKey(String world, int x, int y, int z) {
+        return world + ":" + x + ":" + y + ":" + z;
+    }
+
+    /**
+     * @return true if shops are still being loaded from the database
+     */
+    public boolean isLoading() {
+        return loading;
+    }
+
+    void setLoading(boolean loading) {
+        this.loading = loading;
+    }
+
+    /**
+     * Marks a loaded shop to have its block checked when its chunk loads.
+     * 
+     * @param shop
+     *            The shop
+     */
+    void deferCheck(Shop shop) {
+        unchecked.add(shop);
+    }
+
+    /**
+     * Checks the block of a shop which was loaded while its chunk wasn't.
+     * Call this once the chunk is loaded.
+     * 
+     * @param shop
+     *            The shop
+     * @return false if the shop was invalid and has been removed
+     */
+    public boolean checkDeferred(Shop shop) {
+        return !unchecked.remove(shop) || checkBlock(shop);
+    }
+
+    /**
+     * Checks a shop's block can still hold items, removing the shop from
+     * memory and the database if it can't. Requires the chunk to be loaded.
+     * 
+     * @param shop
+     *            The shop
+     * @return false if the shop was invalid and has been removed
+     */
+    boolean checkBlock(Shop shop) {
+        final Location loc = shop.getLocation();
+        if (loc.getBlock().getState() instanceof InventoryHolder) {
+            return true;
+        }
+        plugin.getLogger().info("Shop is not an InventoryHolder in " + loc.getWorld().getName() + " at: "
+                + loc.getBlockX() + ", " + loc.getBlockY() + ", " + loc.getBlockZ() + ".  Deleting.");
+        plugin.getDB().executeOrdered(databaseKey(loc), "DELETE FROM shops WHERE x = ? AND y = ? and z = ? and world = ?",
+                loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), loc.getWorld().getName());
+        removeShop(shop);
+        return false;
+    }
+
     /**
      * Loads the given shop into storage. This method is used for loading data
      * from the database.
@@ -90,42 +177,38 @@ public class ShopManager {
     }
 
     /**
-     * Returns a hashmap of World and  Chunk  and Shop
+     * Returns a read only view of every world, chunk and shop
      * 
-     * @return a hashmap of World and Chunk and Shop can be @{code Null}
+     * @return a map of World and Chunk and Shop
      */
-    public HashMap<String, HashMap<ShopChunk, HashMap<Location, Shop>>> getShops() {
-        return shops;
+    public Map<String, Map<ShopChunk, Map<Location, Shop>>> getShopIndex() {
+        return Collections.unmodifiableMap(shops);
     }
 
     /**
-     * Returns a hashmap of Chunk and Shop
+     * Returns a read only view of the chunks and shops in a world
      * 
      * @param world
      *            The name of the world (case sensitive) to get the list of
      *            shops from
-     * @return a hashmap of Chunk  and  Shop can be @{code Null}
+     * @return a map of Chunk and Shop can be @{code Null}
      */
     @Nullable
-    public HashMap<ShopChunk, HashMap<Location, Shop>> getShops(String world) {
+    public ShopWorldIndex getWorldIndex(String world) {
         return shops.get(world);
     }
 
     /**
-     * Returns a hashmap of Shops
+     * Returns a read only view of the shops in a chunk
      * 
      * @param c
      *            The chunk to search. Referencing doesn't matter, only
      *            coordinates and world are used.
-     * @return a Hashmap of Location and Shops can be @{code NULL}
+     * @return a map of Location and Shops can be @{code NULL}
      */
-    public HashMap<Location, Shop> getShops(Chunk c) {
-        // long start = System.nanoTime();
-        final HashMap<Location, Shop> shops = getShops(c.getWorld().getName(), c.getX(), c.getZ());
-        // long end = System.nanoTime();
-        // System.out.println("Chunk lookup in " + ((end - start)/1000000.0) +
-        // "ms.");
-        return shops;
+    @Nullable
+    public ShopChunkMap getChunkShops(Chunk c) {
+        return getChunkShops(c.getWorld().getName(), c.getX(), c.getZ());
     }
 
     /**
@@ -133,17 +216,86 @@ public class ShopManager {
      * @param world World
      * @param chunkX x coord
      * @param chunkZ y coord
-     * @return a Hashmap of Location and Shops can be @{code Null}
+     * @return a map of Location and Shops can be @{code Null}
      */
-    public HashMap<Location, Shop> getShops(String world, int chunkX, int chunkZ) {
-        final HashMap<ShopChunk, HashMap<Location, Shop>> inWorld = this.getShops(world);
+    @Nullable
+    public ShopChunkMap getChunkShops(String world, int chunkX, int chunkZ) {
+        final ShopWorldIndex inWorld = shops.get(world);
 
         if (inWorld == null) {
             return null;
         }
+        return inWorld.getChunk(chunkX, chunkZ);
+    }
+
+    /**
+     * Returns a copy of every world, chunk and shop. Changing it doesn't
+     * change the shops.
+     * 
+     * @return a hashmap of World and Chunk and Shop
+     * @deprecated Copies every shop. Use {@link #getShopIndex()}
+     */
+    @Deprecated
+    public HashMap<String, HashMap<ShopChunk, HashMap<Location, Shop>>> getShops() {
+        final HashMap<String, HashMap<ShopChunk, HashMap<Location, Shop>>> copy = new HashMap<>(shops.size());
+        for (final String world : shops.keySet()) {
+            copy.put(world, getShops(world));
+        }
+        return copy;
+    }
 
-        final ShopChunk shopChunk = new ShopChunk(world, chunkX, chunkZ);
-        return inWorld.get(shopChunk);
+    /**
+     * Returns a copy of the chunks and shops in a world. Changing it doesn't
+     * change the shops.
+     * 
+     * @param world
+     *            The name of the world (case sensitive) to get the list of
+     *            shops from
+     * @return a hashmap of Chunk  and  Shop can be @{code Null}
+     * @deprecated Copies every shop in the world. Use
+     *             {@link #getWorldIndex(String)}
+     */
+    @Deprecated
+    @Nullable
+    public HashMap<ShopChunk, HashMap<Location, Shop>> getShops(String world) {
+        final ShopWorldIndex inWorld = shops.get(world);
+        if (inWorld == null) {
+            return null;
+        }
+        final HashMap<ShopChunk, HashMap<Location, Shop>> copy = new HashMap<>();
+        for (final Map.Entry<ShopChunk, Map<Location, Shop>> e : inWorld.entrySet()) {
+            copy.put(e.getKey(), new HashMap<>(e.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a copy of the shops in a chunk. Changing it doesn't change the
+     * shops.
+     * 
+     * @param c
+     *            The chunk to search. Referencing doesn't matter, only
+     *            coordinates and world are used.
+     * @return a Hashmap of Location and Shops can be @{code NULL}
+     * @deprecated Use {@link #getChunkShops(Chunk)}
+     */
+    @Deprecated
+    public HashMap<Location, Shop> getShops(Chunk c) {
+        return getShops(c.getWorld().getName(), c.getX(), c.getZ());
+    }
+
+    /**
+     *
+     * @param world World
+     * @param chunkX x coord
+     * @param chunkZ y coord
+     * @return a copy of the Location and Shops can be @{code Null}
+     * @deprecated Use {@link #getChunkShops(String, int, int)}
+     */
+    @Deprecated
+    public HashMap<Location, Shop> getShops(String world, int chunkX, int chunkZ) {
+        final ShopChunkMap inChunk = getChunkShops(world, chunkX, chunkZ);
+        return inChunk == null ? null : new HashMap<>(inChunk);
     }
 
     /**
@@ -154,13 +306,98 @@ public class ShopManager {
      * @return The shop at that location
      */
     public Shop getShop(Location loc) {
-        final HashMap<Location, Shop> inChunk = getShops(loc.getChunk());
-        if (inChunk == null) {
+        final World world = loc.getWorld();
+        if (world == null) {
+            return null;
+        }
+        return getShop(world.getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+    }
+
+    /**
+     * Gets the shop at a block
+     * 
+     * @param b
+     *            The block to get the shop from
+     * @return The shop at that block
+     */
+    public Shop getShop(Block b) {
+        return getShop(b.getWorld().getName(), b.getX(), b.getY(), b.getZ());
+    }
+
+    /**
+     * Gets the shop at the given block coordinates. The chunk is worked out
+     * from the coordinates, so this never loads a chunk or touches the world.
+     * 
+     * @param world
+     *            The name of the world (case sensitive)
+     * @param x
+     *            The block x coordinate
+     * @param y
+     *            The block y coordinate
+     * @param z
+     *            The block z coordinate
+     * @return The shop at that block, or null if there is none
+     */
+    public Shop getShop(String world, int x, int y, int z) {
+        final ShopWorldIndex inWorld = shops.get(world);
+        if (inWorld == null) {
             return null;
         }
-        // We can do this because WorldListener updates the world reference so
-        // the world in loc is the same as world in inChunk.get(loc)
-        return inChunk.get(loc);
+        return inWorld.getShop(x, y, z);
+    }
+
+    /**
+     * Makes the shops next to a block look for their signs and the other half
+     * of their chest again, after the block was placed, broken or written on.
+     * 
+     * @param b
+     *            The block which changed
+     */
+    public void blockChanged(Block b) {
+        final ShopWorldIndex inWorld = shops.get(b.getWorld().getName());
+        if (inWorld == null) {
+            return;
+        }
+        final int x = b.getX();
+        final int y = b.getY();
+        final int z = b.getZ();
+        invalidateNeighbour(inWorld.getShop(x + 1, y, z));
+        invalidateNeighbour(inWorld.getShop(x - 1, y, z));
+        invalidateNeighbour(inWorld.getShop(x, y, z + 1));
+        invalidateNeighbour(inWorld.getShop(x, y, z - 1));
+    }
+
+    private static void invalidateNeighbour(Shop shop) {
+        if (shop != null) {
+            shop.invalidateSigns();
+            if (shop instanceof ContainerShop) {
+                ((ContainerShop) shop).invalidatePartner();
+            }
+        }
+    }
+
+    /**
+     * Throws away the cached stock and space of the shops using an inventory,
+     * after something other than the shop changed it.
+     * 
+     * @param inv
+     *            The inventory which changed
+     */
+    public void inventoryChanged(Inventory inv) {
+        if (inv instanceof DoubleChestInventory) {
+            // Both halves may be shops
+            inventoryChanged(((DoubleChestInventory) inv).getLeftSide());
+            inventoryChanged(((DoubleChestInventory) inv).getRightSide());
+            return;
+        }
+        final Location loc = inv.getLocation();
+        if (loc == null || loc.getWorld() == null) {
+            return;
+        }
+        final Shop shop = getShop(loc.getWorld().getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        if (shop != null) {
+            shop.invalidateCounts();
+        }
     }
 
     /**
@@ -173,25 +410,13 @@ public class ShopManager {
      *            The shop to add
      */
     private void addShop(String world, Shop shop) {
-        HashMap<ShopChunk, HashMap<Location, Shop>> inWorld = this.getShops().computeIfAbsent(world, k -> new HashMap<>(3));
-
-        // There's no world storage yet. We need to create that hashmap.
-        // Put it in the data universe
-
-        // Calculate the chunks coordinates. These are 1,2,3 for each chunk, NOT
-        // location rounded to the nearest 16.
-        final int x = (int) Math.floor((shop.getLocation().getBlockX()) / 16.0);
-        final int z = (int) Math.floor((shop.getLocation().getBlockZ()) / 16.0);
-
-        // Get the chunk set from the world info
-        final ShopChunk shopChunk = new ShopChunk(world, x, z);
-        HashMap<Location, Shop> inChunk = inWorld.computeIfAbsent(shopChunk, k -> new HashMap<>(1));
-
-        // That chunk data hasn't been created yet - Create it!
-        // Put it in the world
-
-        // Put the shop in its location in the chunk list.
-        inChunk.put(shop.getLocation(), shop);
+        final Shop replaced = shops.computeIfAbsent(world, ShopWorldIndex::new).addShop(shop);
+        if (replaced != null) {
+            unindexOwner(replaced, replaced.getOwnerId());
+            items.remove(replaced);
+        }
+        items.add(shop);
+        owners.computeIfAbsent(shop.getOwnerId(), k -> new HashSet<>(4)).add(shop);
     }
 
     /**
@@ -203,16 +428,195 @@ public class ShopManager {
      */
     public void removeShop(Shop shop) {
         final Location loc = shop.getLocation();
-        final String world = loc.getWorld().getName();
-        final HashMap<ShopChunk, HashMap<Location, Shop>> inWorld = this.getShops().get(world);
+        final ShopWorldIndex inWorld = shops.get(loc.getWorld().getName());
+        if (inWorld == null) {
+            return;
+        }
+        final Shop removed = inWorld.removeShop(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        if (removed != null) {
+            unindexOwner(removed, removed.getOwnerId());
+            items.remove(removed);
+            unchecked.remove(removed);
+        }
+    }
+
+    private void unindexOwner(Shop shop, UUID owner) {
+        final Set<Shop> owned = owners.get(owner);
+        if (owned != null && owned.remove(shop) && owned.isEmpty()) {
+            owners.remove(owner);
+        }
+    }
+
+    /**
+     * Moves a shop to its new owner in the owner index. Called by shops when
+     * their owner changes. Copies of shops which aren't in storage (Such as
+     * the ones held by an Info) are ignored.
+     * 
+     * @param shop
+     *            The shop which changed owner
+     * @param previous
+     *            The UUID of the previous owner
+     */
+    void ownerChanged(Shop shop, UUID previous) {
+        if (previous.equals(shop.getOwnerId()) || getShop(shop.getLocation()) != shop) {
+            return;
+        }
+        unindexOwner(shop, previous);
+        owners.computeIfAbsent(shop.getOwnerId(), k -> new HashSet<>(4)).add(shop);
+    }
+
+    /**
+     * @return The index of shops by the item they trade
+     */
+    public ShopItemIndex getItemIndex() {
+        return items;
+    }
+
+    /**
+     * @return The shared items which shops trade
+     */
+    public ItemPrototypeCache getItemCache() {
+        return prototypes;
+    }
+
+    /**
+     * Finds the closest shop trading an item whose name contains the given
+     * text, matched the same way as {@link ShopItemIndex#find(String)}. The
+     * matching shops are checked one by one when there are fewer of them than
+     * shops in range, otherwise only the part of the world within range is
+     * looked at. Either way no chunks are loaded.
+     * 
+     * @param loc
+     *            The location to search from
+     * @param search
+     *            The item name to search for
+     * @param maxDistance
+     *            How far away the shop may be, in blocks
+     * @return The closest matching shop, or null if there is none in range
+     */
+    @Nullable
+    public Shop findNearestShop(Location loc, String search, double maxDistance) {
+        final ShopWorldIndex inWorld = shops.get(loc.getWorld().getName());
+        if (inWorld == null) {
+            return null;
+        }
+        final List<Shop> matching = items.find(search);
+        if (matching.isEmpty()) {
+            return null;
+        }
+
+        final int range = (int) Math.ceil(maxDistance);
+        final int bx = loc.getBlockX();
+        final int bz = loc.getBlockZ();
+        if (matching.size() <= inWorld.getTree().countNear(bx - range, bz - range, bx + range, bz + range)) {
+            final String world = inWorld.getWorld();
+            Shop closest = null;
+            double best = maxDistance * maxDistance;
+            for (final Shop shop: matching) {
+                final Location at = shop.getLocation();
+                if (!world.equals(at.getWorld().getName())) {
+                    continue;
+                }
+                final double dx = at.getBlockX() - loc.getX();
+                final double dy = at.getBlockY() - loc.getY();
+                final double dz = at.getBlockZ() - loc.getZ();
+                final double d = dx * dx + dy * dy + dz * dz;
+                if (d <= best) {
+                    best = d;
+                    closest = shop;
+                }
+            }
+            return closest;
+        }
+
+        final Set<Shop> candidates = Collections.newSetFromMap(new IdentityHashMap<>(matching.size()));
+        candidates.addAll(matching);
+        final List<Shop> found = getNearestShops(loc, 1, maxDistance, candidates::contains);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Finds the closest shops to a location
+     * 
+     * @param loc
+     *            The location to search from
+     * @param k
+     *            The maximum number of shops to return
+     * @param maxDistance
+     *            How far away a shop may be, in blocks
+     * @param filter
+     *            Only shops this accepts are returned, such as shops selling
+     *            a certain item. Null for any shop.
+     * @return Up to k shops, closest first
+     */
+    public List<Shop> getNearestShops(Location loc, int k, double maxDistance, @Nullable Predicate<Shop> filter) {
+        final ShopWorldIndex inWorld = shops.get(loc.getWorld().getName());
+        if (inWorld == null) {
+            return new ArrayList<>(0);
+        }
+        return inWorld.getTree().nearest(loc.getX(), loc.getY(), loc.getZ(), k, maxDistance, filter);
+    }
+
+    /**
+     * Finds every shop within a distance of a location
+     * 
+     * @param loc
+     *            The centre of the search
+     * @param radius
+     *            The maximum distance in blocks
+     * @param filter
+     *            Only shops this accepts are returned. Null for any shop.
+     * @return The shops in range, in no particular order
+     */
+    public List<Shop> getShopsWithin(Location loc, double radius, @Nullable Predicate<Shop> filter) {
+        final ShopWorldIndex inWorld = shops.get(loc.getWorld().getName());
+        if (inWorld == null) {
+            return new ArrayList<>(0);
+        }
+        return inWorld.getTree().withinRadius(loc.getX(), loc.getY(), loc.getZ(), radius, filter);
+    }
 
-        final int x = (int) Math.floor((shop.getLocation().getBlockX()) / 16.0);
-        final int z = (int) Math.floor((shop.getLocation().getBlockZ()) / 16.0);
+    /**
+     * Finds every shop inside a box. The bounds are inclusive block
+     * coordinates.
+     * 
+     * @param world
+     *            The name of the world (case sensitive)
+     * @param filter
+     *            Only shops this accepts are returned. Null for any shop.
+     * @return The shops in the box, in no particular order
+     */
+    public List<Shop> getShopsWithin(String world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+            @Nullable Predicate<Shop> filter) {
+        final ShopWorldIndex inWorld = shops.get(world);
+        if (inWorld == null) {
+            return new ArrayList<>(0);
+        }
+        return inWorld.getTree().withinBox(minX, minY, minZ, maxX, maxY, maxZ, filter);
+    }
 
-        final ShopChunk shopChunk = new ShopChunk(world, x, z);
-        final HashMap<Location, Shop> inChunk = inWorld.get(shopChunk);
+    /**
+     * Counts the shops owned by a player.
+     * 
+     * @param owner
+     *            The UUID of the player
+     * @return The number of shops they own
+     */
+    public int countShops(UUID owner) {
+        final Set<Shop> owned = owners.get(owner);
+        return owned == null ? 0 : owned.size();
+    }
 
-        inChunk.remove(loc);
+    /**
+     * Returns a read only view of the shops owned by a player
+     * 
+     * @param owner
+     *            The UUID of the player
+     * @return The shops they own, empty if they own none
+     */
+    public Set<Shop> getShops(UUID owner) {
+        final Set<Shop> owned = owners.get(owner);
+        return owned == null ? Collections.emptySet() : Collections.unmodifiableSet(owned);
     }
 
     /**
@@ -224,11 +628,11 @@ public class ShopManager {
         if (plugin.display) {
             for (final World world: Bukkit.getWorlds()) {
                 for (final Chunk chunk: world.getLoadedChunks()) {
-                    final HashMap<Location, Shop> inChunk = this.getShops(chunk);
+                    final ShopChunkMap inChunk = this.getChunkShops(chunk);
                     if (inChunk == null) {
                         continue;
                     }
-                    for (final Shop shop: inChunk.values()) {
+                    for (final Shop shop: inChunk.toArray()) {
                         shop.onUnload();
                     }
                 }
@@ -236,6 +640,10 @@ public class ShopManager {
         }
         actions.clear();
         shops.clear();
+        owners.clear();
+        items.clear();
+        unchecked.clear();
+        prototypes.clear();
     }
 
     /**
@@ -251,14 +659,12 @@ public class ShopManager {
      * @return True if they're allowed to place a shop there.
      */
     public boolean canBuildShop(Player p, Block b, BlockFace bf) {
+        if (loading) {
+            p.sendMessage(ChatColor.RED + "Shops are still loading, try again in a moment.");
+            return false;
+        }
         if (plugin.limit) {
-            int owned = 0;
-            final Iterator<Shop> it = getShopIterator();
-            while (it.hasNext()) {
-                if (p.equals(it.next().getOwner().getPlayer())) {
-                    owned++;
-                }
-            }
+            final int owned = countShops(p.getUniqueId());
 
             final int max = plugin.getShopLimit(p);
             if (owned + 1 > max) {
@@ -328,7 +734,7 @@ public class ShopManager {
 
                     // Price per item
                     double price;
-                    if (plugin.getConfig().getBoolean("whole-number-prices-only")) {
+                    if (plugin.getSettings().wholeNumberPricesOnly) {
                         price = Integer.parseInt(message);
                     } else {
                         price = Double.parseDouble(message);
@@ -337,7 +743,7 @@ public class ShopManager {
                         p.sendMessage(MsgUtil.getMessage("price-too-cheap"));
                         return;
                     }
-                    final double tax = plugin.getConfig().getDouble("shop.cost");
+                    final double tax = plugin.getSettings().shopCost;
 
                     // Tax refers to the cost to create a shop. Not actual
                     // tax, that would be silly
@@ -380,7 +786,7 @@ public class ShopManager {
                             + loc.getWorld().getName() + " - " + loc.getX() + "," + loc.getY() + "," + loc.getZ()
                             + ")");
 
-                    if (!plugin.getConfig().getBoolean("shop.lock")) {
+                    if (!plugin.getSettings().lock) {
                         // Warn them if they haven't been warned since
                         // reboot
                         if (!plugin.warnings.contains(p.getName())) {
@@ -394,7 +800,7 @@ public class ShopManager {
                     Block signblock = info.getSignBlock();
                     Block shopBlock = info.getLocation().getBlock();
                     if (signblock != null && signblock.getType() == Material.AIR
-                            && plugin.getConfig().getBoolean("shop.auto-sign")) {
+                            && plugin.getSettings().autoSign) {
                         BlockState signBlockState = signblock.getState();
                         BlockData chest = shopBlock.getBlockData();
                         signBlockState.setType(Material.OAK_WALL_SIGN);
@@ -405,6 +811,7 @@ public class ShopManager {
                             signBlockState.setBlockData(signBlockDataType);
                         }
                         signBlockState.update(true);
+                        shop.invalidateSigns();
                         shop.setSignText();
                     }
     
@@ -451,6 +858,9 @@ public class ShopManager {
                     return;
                 }
 
+                // The cached counts miss changes made without an event, such
+                // as by other plugins, so count again before trading
+                shop.invalidateCounts();
                 if (shop.isSelling()) {
                     final int stock;
                     final ItemStack itemSold;
@@ -483,85 +893,92 @@ public class ShopManager {
                     }
 
                     // Money handling
-                    if (true) {
-                        // Check their balance. Works with *most* economy
-                        // plugins*
-                        if (plugin.getEcon().getBalance(p) < amount * shop.getPrice()) {
-                            p.sendMessage(MsgUtil.getMessage("you-cant-afford-to-buy",
-                                    format(amount * shop.getPrice()),
-                                    format(plugin.getEcon().getBalance(p))));
-                            return;
-                        }
+                    // Check their balance. Works with *most* economy
+                    // plugins*
+                    if (plugin.getEcon().getBalance(p) < amount * shop.getPrice()) {
+                        p.sendMessage(MsgUtil.getMessage("you-cant-afford-to-buy",
+                                format(amount * shop.getPrice()),
+                                format(plugin.getEcon().getBalance(p))));
+                        return;
+                    }
 
-                        // Don't tax them if they're purchasing from
-                        // themselves.
-                        // Do charge an amount of tax though.
-                        final double tax = plugin.getConfig().getDouble("tax");
-                        final double total = amount * shop.getPrice();
+                    // Don't tax them if they're purchasing from
+                    // themselves.
+                    // Do charge an amount of tax though.
+                    final Settings settings = plugin.getSettings();
+                    final double tax = settings.tax;
+                    final double total = amount * shop.getPrice();
+
+                    // Check if player has enough to pay for it
+                    if (plugin.getEcon().getBalance(p) <= total) {
+                        p.sendMessage(MsgUtil.getMessage("you-cant-afford-to-buy",
+                                format(amount * shop.getPrice()),
+                                format(plugin.getEcon().getBalance(p))));
+                        return;
+                    }
 
-                        // Check if player has enough to pay for it
-                        if (plugin.getEcon().getBalance(p) <= total) {
-                            p.sendMessage(MsgUtil.getMessage("you-cant-afford-to-buy",
-                                    format(amount * shop.getPrice()),
-                                    format(plugin.getEcon().getBalance(p))));
+                    // Attempt to give money to the shop owner
+                    final boolean payOwner = !shop.isUnlimited() || settings.payUnlimitedShopOwners;
+                    final boolean payTax = payOwner && tax != 0 && plugin.getTaxAccount().hasPlayedBefore();
+                    if (payOwner) {
+                        try {
+                            plugin.getEcon().deposit(shop.getOwner(), total * (1 - tax));
+                        } catch (Exception ex) {
+                            p.sendMessage(ChatColor.RED + "Error: Unable to purchase from this shop!");
+                            plugin.getLogger().warning("Unable to complete purchase from QuickShop owned by " + shop.getOwner().getName());
+                            ex.printStackTrace();
                             return;
                         }
 
-                        // Attempt to give money to the shop owner
-                        if (!shop.isUnlimited() || plugin.getConfig().getBoolean("shop.pay-unlimited-shop-owners")) {
-                            try {
-                                plugin.getEcon().deposit(shop.getOwner(), total * (1 - tax));
-                            } catch (Exception ex) {
-                                p.sendMessage(ChatColor.RED + "Error: Unable to purchase from this shop!");
-                                plugin.getLogger().warning("Unable to complete purchase from QuickShop owned by " + shop.getOwner().getName());
-                                ex.printStackTrace();
-                                return;
-                            }
-
-                            if (tax != 0 && plugin.getTaxAccount().hasPlayedBefore()) {
-                                plugin.getEcon().deposit(plugin.getTaxAccount(), total * tax);
-                            }
+                        if (payTax) {
+                            plugin.getEcon().deposit(plugin.getTaxAccount(), total * tax);
                         }
+                    }
 
-                        // Withdraw the money from the purchaser
-                        plugin.getEcon().withdraw(p, total);
-
-                        // Notify the shop owner
-                        if (plugin.getConfig().getBoolean("show-tax")) {
-                            String msg1 = MsgUtil.getMessage("player-bought-from-your-store-tax", p.getName(), ""
-                                    + amount, shop.getDataName(), Util.format((tax * total)));
-                            if (stock == amount) {
-                                msg1 += "\n"
-                                        + MsgUtil.getMessage("shop-out-of-stock", ""
-                                                + shop.getLocation().getBlockX(), ""
-                                                + shop.getLocation().getBlockY(), ""
-                                                + shop.getLocation().getBlockZ(), shop.getDataName());
-                            }
-                            MsgUtil.send(shop.getOwner(), msg1);
-                        } else {
-                            String msg1 = MsgUtil.getMessage("player-bought-from-your-store", p.getName(), ""
-                                    + amount, shop.getDataName());
-                            if (stock == amount) {
-                                msg1 += "\n"
-                                        + MsgUtil.getMessage("shop-out-of-stock", ""
-                                                + shop.getLocation().getBlockX(), ""
-                                                + shop.getLocation().getBlockY(), ""
-                                                + shop.getLocation().getBlockZ(), shop.getDataName());
-                            }
-                            MsgUtil.send(shop.getOwner(), msg1);
-                        }
+                    // Withdraw the money from the purchaser
+                    plugin.getEcon().withdraw(p, total);
 
-                    }
                     // Transfers the item from A to B
+                    final int sold;
                     try {
-                        shop.sell(p, amount);
+                        sold = shop.sell(p, amount);
                     } catch (InvalidShopException inv) {
+                        refundPurchase(p, shop, total, payOwner, payTax, tax);
                         p.sendMessage(MsgUtil.getMessage("shop-is-invalid"));
                         QuickShop.instance.log(inv.getMessage());
                         return;
                     }
-                    MsgUtil.sendPurchaseSuccess(p, shop, amount);
-                    plugin.log(p.getName() + " bought " + amount + " for " + (shop.getPrice() * amount) + " from "
+                    if (sold < amount) {
+                        // The shop had less than it looked like, only pay for
+                        // what they got
+                        refundPurchase(p, shop, (amount - sold) * shop.getPrice(), payOwner, payTax, tax);
+                        if (sold == 0) {
+                            p.sendMessage(MsgUtil.getMessage("shop-stock-too-low", "0", shop.getDataName()));
+                            return;
+                        }
+                    }
+
+                    // Notify the shop owner
+                    final double paid = sold * shop.getPrice();
+                    String msg1;
+                    if (settings.showTax) {
+                        msg1 = MsgUtil.getMessage("player-bought-from-your-store-tax", p.getName(), ""
+                                + sold, shop.getDataName(), Util.format((tax * paid)));
+                    } else {
+                        msg1 = MsgUtil.getMessage("player-bought-from-your-store", p.getName(), ""
+                                + sold, shop.getDataName());
+                    }
+                    if (stock <= sold) {
+                        msg1 += "\n"
+                                + MsgUtil.getMessage("shop-out-of-stock", ""
+                                        + shop.getLocation().getBlockX(), ""
+                                        + shop.getLocation().getBlockY(), ""
+                                        + shop.getLocation().getBlockZ(), shop.getDataName());
+                    }
+                    MsgUtil.send(shop.getOwner(), msg1);
+
+                    MsgUtil.sendPurchaseSuccess(p, shop, sold);
+                    plugin.log(p.getName() + " bought " + sold + " for " + paid + " from "
                             + shop.toString());
                 } else if (shop.isBuying()) {
                     final int space;
@@ -591,42 +1008,68 @@ public class ShopManager {
                     if (validatePurchase(p, amount, shop)) return;
     
                     // Money handling
-                    if (!p.equals(shop.getOwner().getPlayer())) {
-                        // Don't tax them if they're purchasing from
-                        // themselves.
-                        // Do charge an amount of tax though.
-                        final double tax = plugin.getConfig().getDouble("tax");
-                        final double total = amount * shop.getPrice();
-
-                        if (!shop.isUnlimited() || plugin.getConfig().getBoolean("shop.pay-unlimited-shop-owners")) {
-                            // Tries to check their balance nicely to see if
-                            // they can afford it.
-                            if (plugin.getEcon().getBalance(shop.getOwner()) < amount * shop.getPrice()) {
-                                p.sendMessage(MsgUtil.getMessage("the-owner-cant-afford-to-buy-from-you",
-                                        format(amount * shop.getPrice()),
-                                        format(plugin.getEcon().getBalance(shop.getOwner()))));
-                                return;
-                            }
-
-                            // Check for plugins faking econ.has(amount)
-                            if (!plugin.getEcon().withdraw(shop.getOwner(), total)) {
-                                p.sendMessage(MsgUtil.getMessage("the-owner-cant-afford-to-buy-from-you",
-                                        format(amount * shop.getPrice()),
-                                        format(plugin.getEcon().getBalance(shop.getOwner()))));
-                                return;
-                            }
-
-                            if (tax != 0 && plugin.getTaxAccount().hasPlayedBefore()) {
-                                plugin.getEcon().deposit(plugin.getTaxAccount(), total * tax);
-                            }
+                    final Settings settings = plugin.getSettings();
+                    final double tax = settings.tax;
+                    final double total = amount * shop.getPrice();
+                    // Don't pay them if they're selling to themselves.
+                    final boolean paid = !p.getUniqueId().equals(shop.getOwnerId());
+                    final boolean payOwner = paid && (!shop.isUnlimited() || settings.payUnlimitedShopOwners);
+                    final boolean payTax = payOwner && tax != 0 && plugin.getTaxAccount().hasPlayedBefore();
+                    if (payOwner) {
+                        // Tries to check their balance nicely to see if
+                        // they can afford it.
+                        if (plugin.getEcon().getBalance(shop.getOwner()) < amount * shop.getPrice()) {
+                            p.sendMessage(MsgUtil.getMessage("the-owner-cant-afford-to-buy-from-you",
+                                    format(amount * shop.getPrice()),
+                                    format(plugin.getEcon().getBalance(shop.getOwner()))));
+                            return;
+                        }
+
+                        // Check for plugins faking econ.has(amount)
+                        if (!plugin.getEcon().withdraw(shop.getOwner(), total)) {
+                            p.sendMessage(MsgUtil.getMessage("the-owner-cant-afford-to-buy-from-you",
+                                    format(amount * shop.getPrice()),
+                                    format(plugin.getEcon().getBalance(shop.getOwner()))));
+                            return;
                         }
+
+                        if (payTax) {
+                            plugin.getEcon().deposit(plugin.getTaxAccount(), total * tax);
+                        }
+                    }
+                    if (paid) {
                         // Give them the money after we know we succeeded
                         plugin.getEcon().deposit(p, total * (1 - tax));
+                    }
 
+                    final int bought;
+                    try {
+                        bought = shop.buy(p, amount);
+                    } catch (InvalidShopException e) {
+                        if (paid) {
+                            refundSale(p, shop, total, payOwner, payTax, tax);
+                        }
+                        p.sendMessage(MsgUtil.getMessage("shop-is-invalid"));
+                        QuickShop.instance.log(e.getMessage());
+                        return;
+                    }
+                    if (bought < amount) {
+                        // The shop had less room than it looked like, they
+                        // keep the rest and aren't paid for it
+                        if (paid) {
+                            refundSale(p, shop, (amount - bought) * shop.getPrice(), payOwner, payTax, tax);
+                        }
+                        if (bought == 0) {
+                            p.sendMessage(MsgUtil.getMessage("shop-has-no-space", "0", shop.getDataName()));
+                            return;
+                        }
+                    }
+
+                    if (paid) {
                         // Notify the owner of the purchase.
-                        String msg1 = MsgUtil.getMessage("player-sold-to-your-store", p.getName(), "" + amount,
+                        String msg1 = MsgUtil.getMessage("player-sold-to-your-store", p.getName(), "" + bought,
                                 shop.getDataName());
-                        if (space == amount) {
+                        if (space <= bought) {
                             msg1 += "\n"
                                     + MsgUtil.getMessage("shop-out-of-space", "" + shop.getLocation().getBlockX(),
                                             "" + shop.getLocation().getBlockY(), ""
@@ -635,18 +1078,11 @@ public class ShopManager {
 
                         MsgUtil.send(shop.getOwner(), msg1);
                     }
-                    try {
-                        shop.buy(p, amount);
-                    } catch (InvalidShopException e) {
-                        p.sendMessage(MsgUtil.getMessage("shop-is-invalid"));
-                        QuickShop.instance.log(e.getMessage());
-                        return;
-                    }
-                    MsgUtil.sendSellSuccess(p, shop, amount);
-                    plugin.log(p.getName() + " sold " + amount + " for " + (shop.getPrice() * amount) + " to "
+                    MsgUtil.sendSellSuccess(p, shop, bought);
+                    plugin.log(p.getName() + " sold " + bought + " for " + (shop.getPrice() * bought) + " to "
                             + shop.toString());
                 }
-                shop.setSignText(); // Update the signs count
+                plugin.getSignRefresher().refresh(shop); // Update the signs count
             }
             /* If it was already cancelled (from destroyed) */
             else {
@@ -654,6 +1090,41 @@ public class ShopManager {
         });
     }
     
+    /**
+     * Undoes the payment for items a player paid for but didn't get from a
+     * selling shop.
+     * 
+     * @param refund
+     *            The price of the items they didn't get
+     */
+    private void refundPurchase(Player p, Shop shop, double refund, boolean paidOwner, boolean paidTax,
+            double tax) {
+        if (paidOwner) {
+            plugin.getEcon().withdraw(shop.getOwner(), refund * (1 - tax));
+            if (paidTax) {
+                plugin.getEcon().withdraw(plugin.getTaxAccount(), refund * tax);
+            }
+        }
+        plugin.getEcon().deposit(p, refund);
+    }
+
+    /**
+     * Undoes the payment for items a player was paid for but couldn't give
+     * to a buying shop.
+     * 
+     * @param refund
+     *            The price of the items the shop didn't get
+     */
+    private void refundSale(Player p, Shop shop, double refund, boolean paidOwner, boolean paidTax, double tax) {
+        plugin.getEcon().withdraw(p, refund * (1 - tax));
+        if (paidOwner) {
+            if (paidTax) {
+                plugin.getEcon().withdraw(plugin.getTaxAccount(), refund * tax);
+            }
+            plugin.getEcon().deposit(shop.getOwner(), refund);
+        }
+    }
+
     private boolean validatePurchase(Player p, int amount, Shop shop) {
         if (amount == 0) {
             // Dumb.
@@ -669,7 +1140,7 @@ public class ShopManager {
     
     /**
      * Returns a new shop iterator object, allowing iteration over shops
-     * easily, instead of sorting through a 3D hashmap.
+     * easily, instead of sorting through the world and chunk indexes.
      * 
      * @return a new shop iterator object.
      */
@@ -682,14 +1153,18 @@ public class ShopManager {
     }
 
     public class ShopIterator implements Iterator<Shop> {
-        private Iterator<Shop>                                              shops;
-        private Iterator<HashMap<Location, Shop>>                           chunks;
-        private final Iterator<HashMap<ShopChunk, HashMap<Location, Shop>>> worlds;
+        private Shop[]                           shops;
+        private int                              shopIndex;
+        private ShopChunkMap[]                   chunks;
+        private int                              chunkIndex;
+        private final Iterator<ShopWorldIndex>   worlds;
 
-        private Shop                                                        current;
+        private Shop                             current;
 
         public ShopIterator() {
-            worlds = getShops().values().iterator();
+            // The worlds are copied now, and each chunk as we reach it, so
+            // shops can be added and removed while we are iterating.
+            worlds = new ArrayList<>(ShopManager.this.shops.values()).iterator();
         }
 
         /**
@@ -698,18 +1173,16 @@ public class ShopManager {
          */
         @Override
         public boolean hasNext() {
-            if (shops == null || !shops.hasNext()) {
-                if (chunks == null || !chunks.hasNext()) {
+            while (shops == null || shopIndex >= shops.length) {
+                while (chunks == null || chunkIndex >= chunks.length) {
                     if (!worlds.hasNext()) {
                         return false;
-                    } else {
-                        chunks = worlds.next().values().iterator();
-                        return hasNext();
                     }
-                } else {
-                    shops = chunks.next().values().iterator();
-                    return hasNext();
+                    chunks = worlds.next().chunkArray();
+                    chunkIndex = 0;
                 }
+                shops = chunks[chunkIndex++].toArray();
+                shopIndex = 0;
             }
             return true;
         }
@@ -720,19 +1193,10 @@ public class ShopManager {
          */
         @Override
         public Shop next() {
-            if (shops == null || !shops.hasNext()) {
-                if (chunks == null || !chunks.hasNext()) {
-                    if (!worlds.hasNext()) {
-                        throw new NoSuchElementException("No more shops to iterate over!");
-                    }
-                    chunks = worlds.next().values().iterator();
-                }
-                shops = chunks.next().values().iterator();
-            }
-            if (!shops.hasNext()) {
-                return next(); // Skip to the next one (Empty iterator?)
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more shops to iterate over!");
             }
-            current = shops.next();
+            current = shops[shopIndex++];
             return current;
         }
 
@@ -744,7 +1208,7 @@ public class ShopManager {
         @Override
         public void remove() {
             current.delete(false);
-            shops.remove();
+            removeShop(current);
         }
     }
 }
@@ -0,0 +1,347 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+import org.bukkit.Location;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A bucket quadtree over the x and z block coordinates of the shops in one
+ * world. Leaves hold up to {@link #CAPACITY} shops before they are split into
+ * four, and are merged back when enough shops are removed.
+ *
+ * Distances are measured from shop block coordinates and include y, the tree
+ * itself only splits on x and z since shops are spread out horizontally.
+ *
+ * Only the ShopManager should modify it. This class is not thread safe.
+ */
+public class ShopQuadTree {
+    private static final int  CAPACITY  = 16;
+    /** The root covers every int coordinate, so nothing has to be clamped */
+    private static final long ROOT_MIN  = Integer.MIN_VALUE;
+    private static final long ROOT_SIZE = 1L << 32;
+
+    private final Node root = new Node(ROOT_MIN, ROOT_MIN, ROOT_SIZE);
+
+    private static final class Node {
+        final long minX;
+        final long minZ;
+        final long size;
+        /** The shops in this leaf, null once split */
+        Shop[]     shops = new Shop[CAPACITY];
+        /** The shops in this leaf, or in every leaf below this node */
+        int        count;
+        Node[]     children;
+
+        Node(long minX, long minZ, long size) {
+            this.minX = minX;
+            this.minZ = minZ;
+            this.size = size;
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+
+        Node child(int x, int z) {
+            final long half = size >> 1;
+            return children[(x >= minX + half ? 1 : 0) | (z >= minZ + half ? 2 : 0)];
+        }
+
+        boolean intersects(int minX, int minZ, int maxX, int maxZ) {
+            return this.minX <= maxX && this.minX + size > minX && this.minZ <= maxZ && this.minZ + size > minZ;
+        }
+
+        /**
+         * @return The squared distance on the x/z plane from the given point
+         *         to the closest block in this node. Never more than the real
+         *         distance to any shop in it.
+         */
+        double distanceSquared(double x, double z) {
+            final double maxX = minX + size - 1;
+            final double maxZ = minZ + size - 1;
+            final double dx = x < minX ? minX - x : x > maxX ? x - maxX : 0;
+            final double dz = z < minZ ? minZ - z : z > maxZ ? z - maxZ : 0;
+            return dx * dx + dz * dz;
+        }
+    }
+
+    /** A node or shop waiting in a nearest neighbour search */
+    private static final class Entry {
+        final Node   node;
+        final Shop   shop;
+        final double distance;
+
+        Entry(Node node, Shop shop, double distance) {
+            this.node = node;
+            this.shop = shop;
+            this.distance = distance;
+        }
+    }
+
+    private static final Comparator<Entry> CLOSEST_FIRST  = Comparator.comparingDouble(e -> e.distance);
+    private static final Comparator<Entry> FURTHEST_FIRST = CLOSEST_FIRST.reversed();
+
+    private static double distanceSquared(Shop shop, double x, double y, double z) {
+        final Location loc = shop.getLocation();
+        final double dx = loc.getBlockX() - x;
+        final double dy = loc.getBlockY() - y;
+        final double dz = loc.getBlockZ() - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * @return The number of shops in the tree
+     */
+    public int size() {
+        return root.count;
+    }
+
+    void insert(Shop shop) {
+        final Location loc = shop.getLocation();
+        insert(root, shop, loc.getBlockX(), loc.getBlockZ());
+    }
+
+    private void insert(Node node, Shop shop, int x, int z) {
+        while (!node.isLeaf()) {
+            node.count++;
+            node = node.child(x, z);
+        }
+        if (node.count == node.shops.length) {
+            if (node.size > 1) {
+                split(node);
+                insert(node, shop, x, z);
+                return;
+            }
+            // A single column full of shops, it can't be split any further.
+            node.shops = Arrays.copyOf(node.shops, node.count * 2);
+        }
+        node.shops[node.count++] = shop;
+    }
+
+    private void split(Node node) {
+        final long half = node.size >> 1;
+        node.children = new Node[] { new Node(node.minX, node.minZ, half),
+                new Node(node.minX + half, node.minZ, half), new Node(node.minX, node.minZ + half, half),
+                new Node(node.minX + half, node.minZ + half, half) };
+        for (int i = 0; i < node.count; i++) {
+            final Location loc = node.shops[i].getLocation();
+            final Node child = node.child(loc.getBlockX(), loc.getBlockZ());
+            child.shops[child.count++] = node.shops[i];
+        }
+        node.shops = null;
+    }
+
+    boolean remove(Shop shop) {
+        final Location loc = shop.getLocation();
+        return remove(root, shop, loc.getBlockX(), loc.getBlockZ());
+    }
+
+    private boolean remove(Node node, Shop shop, int x, int z) {
+        if (node.isLeaf()) {
+            for (int i = 0; i < node.count; i++) {
+                if (node.shops[i] == shop) {
+                    node.shops[i] = node.shops[--node.count];
+                    node.shops[node.count] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (!remove(node.child(x, z), shop, x, z)) {
+            return false;
+        }
+        if (--node.count <= CAPACITY) {
+            final Shop[] merged = new Shop[CAPACITY];
+            collect(node, merged, 0);
+            node.shops = merged;
+            node.children = null;
+        }
+        return true;
+    }
+
+    private static int collect(Node node, Shop[] out, int n) {
+        if (node.isLeaf()) {
+            System.arraycopy(node.shops, 0, out, n, node.count);
+            return n + node.count;
+        }
+        for (final Node child: node.children) {
+            n = collect(child, out, n);
+        }
+        return n;
+    }
+
+    void clear() {
+        root.children = null;
+        root.shops = new Shop[CAPACITY];
+        root.count = 0;
+    }
+
+    /**
+     * Counts the shops near a box on the x/z plane, without looking at any
+     * shops. Nodes partly in the box are counted whole, so this may count
+     * some shops just outside it, but never misses one inside it.
+     *
+     * @return The number of shops in the nodes covering the box
+     */
+    public int countNear(int minX, int minZ, int maxX, int maxZ) {
+        return countNear(root, minX, minZ, maxX, maxZ);
+    }
+
+    private static int countNear(Node node, int minX, int minZ, int maxX, int maxZ) {
+        if (node.count == 0 || !node.intersects(minX, minZ, maxX, maxZ)) {
+            return 0;
+        }
+        if (node.isLeaf() || node.minX >= minX && node.minX + node.size - 1 <= maxX && node.minZ >= minZ
+                && node.minZ + node.size - 1 <= maxZ) {
+            return node.count;
+        }
+        int count = 0;
+        for (final Node child: node.children) {
+            count += countNear(child, minX, minZ, maxX, maxZ);
+        }
+        return count;
+    }
+
+    /**
+     * Finds every shop inside a box. The bounds are inclusive.
+     *
+     * @param filter
+     *            Only shops this accepts are returned, or null for every shop
+     * @return A new list of the shops in the box, in no particular order
+     */
+    public List<Shop> withinBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+            @Nullable Predicate<Shop> filter) {
+        final List<Shop> found = new ArrayList<>();
+        withinBox(root, minX, minY, minZ, maxX, maxY, maxZ, filter, found);
+        return found;
+    }
+
+    private static void withinBox(Node node, int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+            Predicate<Shop> filter, List<Shop> found) {
+        if (node.count == 0 || !node.intersects(minX, minZ, maxX, maxZ)) {
+            return;
+        }
+        if (!node.isLeaf()) {
+            for (final Node child: node.children) {
+                withinBox(child, minX, minY, minZ, maxX, maxY, maxZ, filter, found);
+            }
+            return;
+        }
+        for (int i = 0; i < node.count; i++) {
+            final Shop shop = node.shops[i];
+            final Location loc = shop.getLocation();
+            final int x = loc.getBlockX();
+            final int y = loc.getBlockY();
+            final int z = loc.getBlockZ();
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ
+                    && (filter == null || filter.test(shop))) {
+                found.add(shop);
+            }
+        }
+    }
+
+    /**
+     * Finds every shop within a distance of a point.
+     *
+     * @param radius
+     *            The maximum distance in blocks
+     * @param filter
+     *            Only shops this accepts are returned, or null for every shop
+     * @return A new list of the shops in range, in no particular order
+     */
+    public List<Shop> withinRadius(double x, double y, double z, double radius, @Nullable Predicate<Shop> filter) {
+        final List<Shop> found = new ArrayList<>();
+        withinRadius(root, x, y, z, radius * radius, filter, found);
+        return found;
+    }
+
+    private static void withinRadius(Node node, double x, double y, double z, double radiusSquared,
+            Predicate<Shop> filter, List<Shop> found) {
+        if (node.count == 0 || node.distanceSquared(x, z) > radiusSquared) {
+            return;
+        }
+        if (!node.isLeaf()) {
+            for (final Node child: node.children) {
+                withinRadius(child, x, y, z, radiusSquared, filter, found);
+            }
+            return;
+        }
+        for (int i = 0; i < node.count; i++) {
+            final Shop shop = node.shops[i];
+            if (distanceSquared(shop, x, y, z) <= radiusSquared && (filter == null || filter.test(shop))) {
+                found.add(shop);
+            }
+        }
+    }
+
+    /**
+     * Finds the closest shops to a point. Nodes are visited closest first, so
+     * only the part of the tree near the point is looked at.
+     *
+     * @param k
+     *            The maximum number of shops to return
+     * @param maxDistance
+     *            How far away a shop may be, in blocks
+     * @param filter
+     *            Only shops this accepts are returned, or null for every shop
+     * @return A new list of up to k shops, closest first
+     */
+    public List<Shop> nearest(double x, double y, double z, int k, double maxDistance,
+            @Nullable Predicate<Shop> filter) {
+        if (k <= 0 || root.count == 0) {
+            return new ArrayList<>(0);
+        }
+        final double maxDistanceSquared = maxDistance * maxDistance;
+        final PriorityQueue<Entry> nodes = new PriorityQueue<>(CLOSEST_FIRST);
+        final PriorityQueue<Entry> best = new PriorityQueue<>(k + 1, FURTHEST_FIRST);
+        nodes.add(new Entry(root, null, root.distanceSquared(x, z)));
+
+        Entry next;
+        while ((next = nodes.poll()) != null) {
+            final double bound = best.size() < k ? maxDistanceSquared : best.peek().distance;
+            if (next.distance > bound) {
+                break;
+            }
+            final Node node = next.node;
+            if (!node.isLeaf()) {
+                for (final Node child: node.children) {
+                    if (child.count > 0) {
+                        final double d = child.distanceSquared(x, z);
+                        if (d <= bound) {
+                            nodes.add(new Entry(child, null, d));
+                        }
+                    }
+                }
+                continue;
+            }
+            for (int i = 0; i < node.count; i++) {
+                final Shop shop = node.shops[i];
+                final double d = distanceSquared(shop, x, y, z);
+                if (d > maxDistanceSquared || best.size() == k && d >= best.peek().distance) {
+                    continue;
+                }
+                if (filter != null && !filter.test(shop)) {
+                    continue;
+                }
+                best.add(new Entry(null, shop, d));
+                if (best.size() > k) {
+                    best.poll();
+                }
+            }
+        }
+
+        final Entry[] sorted = best.toArray(new Entry[0]);
+        Arrays.sort(sorted, CLOSEST_FIRST);
+        final List<Shop> found = new ArrayList<>(sorted.length);
+        for (final Entry entry: sorted) {
+            found.add(entry.shop);
+        }
+        return found;
+    }
+}
@@ -0,0 +1,179 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.Location;
+import org.maxgamer.QuickShop.Util.LongObjectMap;
+
+/**
+ * Every shop in a single world, indexed by packed chunk coordinate and then by
+ * packed block coordinate. Does NOT require the world to be loaded.
+ *
+ * The {@code Map<ShopChunk, Map<Location, Shop>>} interface is a read only
+ * view kept for callers of {@link ShopManager#getWorldIndex(String)}. Only the
+ * ShopManager should modify it.
+ */
+public class ShopWorldIndex extends AbstractMap<ShopChunk, Map<Location, Shop>> {
+    private final String                      world;
+    private final LongObjectMap<ShopChunkMap> chunks = new LongObjectMap<>(64);
+    private final ShopQuadTree                tree   = new ShopQuadTree();
+    private int                               count;
+
+    public ShopWorldIndex(String world) {
+        this.world = world;
+    }
+
+    /**
+     * Packs chunk coordinates into a single long.
+     *
+     * @param chunkX
+     *            The chunk x coordinate (Block x / 16)
+     * @param chunkZ
+     *            The chunk z coordinate (Block z / 16)
+     * @return The packed key
+     */
+    public static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return The name of the world this index is for
+     */
+    public String getWorld() {
+        return world;
+    }
+
+    /**
+     * @return The number of shops in this world
+     */
+    public int getShopCount() {
+        return count;
+    }
+
+    /**
+     * @return The spatial index of the shops in this world
+     */
+    public ShopQuadTree getTree() {
+        return tree;
+    }
+
+    /**
+     * @return The shops in the given chunk, or null if there are none.
+     */
+    public ShopChunkMap getChunk(int chunkX, int chunkZ) {
+        return chunks.get(chunkKey(chunkX, chunkZ));
+    }
+
+    /**
+     * @return The shop at the given block, or null if there is none.
+     */
+    public Shop getShop(int x, int y, int z) {
+        final ShopChunkMap inChunk = chunks.get(chunkKey(x >> 4, z >> 4));
+        return inChunk == null ? null : inChunk.getShop(x, y, z);
+    }
+
+    Shop addShop(Shop shop) {
+        final Location loc = shop.getLocation();
+        final long key = chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+        ShopChunkMap inChunk = chunks.get(key);
+        if (inChunk == null) {
+            inChunk = new ShopChunkMap();
+            chunks.put(key, inChunk);
+        }
+        final Shop replaced = inChunk.addShop(shop);
+        if (replaced == null) {
+            count++;
+        } else {
+            tree.remove(replaced);
+        }
+        tree.insert(shop);
+        return replaced;
+    }
+
+    Shop removeShop(int x, int y, int z) {
+        final long key = chunkKey(x >> 4, z >> 4);
+        final ShopChunkMap inChunk = chunks.get(key);
+        if (inChunk == null) {
+            return null;
+        }
+        final Shop removed = inChunk.removeShop(x, y, z);
+        if (removed != null) {
+            count--;
+            tree.remove(removed);
+            if (inChunk.isEmpty()) {
+                chunks.remove(key);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return A copy of the chunk maps in this world, safe to use while shops
+     *         are being added or removed.
+     */
+    public ShopChunkMap[] chunkArray() {
+        final Object[] raw = chunks.toArray();
+        final ShopChunkMap[] out = new ShopChunkMap[raw.length];
+        System.arraycopy(raw, 0, out, 0, raw.length);
+        return out;
+    }
+
+    @Override
+    public Map<Location, Shop> get(Object key) {
+        if (!(key instanceof ShopChunk)) {
+            return null;
+        }
+        final ShopChunk chunk = (ShopChunk) key;
+        if (!world.equals(chunk.getWorld())) {
+            return null;
+        }
+        return getChunk(chunk.getX(), chunk.getZ());
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return chunks.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    @Override
+    public Set<Entry<ShopChunk, Map<Location, Shop>>> entrySet() {
+        return new AbstractSet<Entry<ShopChunk, Map<Location, Shop>>>() {
+            @Override
+            public Iterator<Entry<ShopChunk, Map<Location, Shop>>> iterator() {
+                final LongObjectMap<ShopChunkMap>.KeyIterator it = chunks.keyIterator();
+                return new Iterator<Entry<ShopChunk, Map<Location, Shop>>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Entry<ShopChunk, Map<Location, Shop>> next() {
+                        final long key = it.nextKey();
+                        final ShopChunk chunk = new ShopChunk(world, (int) (key >> 32), (int) key);
+                        return new SimpleImmutableEntry<>(chunk, it.value());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return chunks.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.maxgamer.QuickShop.QuickShop;
+
+/**
+ * Refreshes shop signs in batches instead of after every change. A shop traded
+ * with twenty times a second only has its sign rewritten once per interval,
+ * showing the stock at the time.
+ *
+ * Every interval the shops waiting for a refresh are taken as one round, which
+ * is worked through spending at most tickBudget each tick. Runs on the server
+ * thread, once a tick.
+ */
+public class SignRefresher implements Runnable {
+    private final QuickShop        plugin;
+    private final int              interval;
+    private final long             tickBudget;
+
+    /** Shops waiting for the next round */
+    private final Set<Shop>        dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** Shops left in the current round */
+    private final ArrayDeque<Shop> round = new ArrayDeque<>();
+    private int                    ticks;
+
+    /**
+     * @param plugin
+     *            The plugin
+     * @param interval
+     *            The ticks between refreshes of one shop's signs
+     * @param tickBudget
+     *            The most time to spend refreshing signs each tick, in
+     *            milliseconds
+     */
+    public SignRefresher(QuickShop plugin, int interval, long tickBudget) {
+        this.plugin = plugin;
+        this.interval = Math.max(1, interval);
+        this.tickBudget = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickBudget));
+    }
+
+    /**
+     * Queues a refresh of a shop's signs. Queueing the same shop again before
+     * it is refreshed does nothing.
+     *
+     * @param shop
+     *            The shop
+     */
+    public void refresh(Shop shop) {
+        dirty.add(shop);
+    }
+
+    /**
+     * @return The number of shops waiting for their signs to be refreshed
+     */
+    public int getPending() {
+        return dirty.size() + round.size();
+    }
+
+    @Override
+    public void run() {
+        if (ticks < interval) {
+            ticks++;
+        }
+        if (ticks >= interval && round.isEmpty() && !dirty.isEmpty()) {
+            ticks = 0;
+            round.addAll(dirty);
+            dirty.clear();
+        }
+        if (round.isEmpty()) {
+            return;
+        }
+
+        final ShopManager manager = plugin.getShopManager();
+        final long deadline = System.nanoTime() + tickBudget;
+        Shop shop;
+        while (System.nanoTime() < deadline && (shop = round.poll()) != null) {
+            // Skip shops removed since they were queued
+            if (manager.getShop(shop.getLocation()) == shop) {
+                shop.setSignText();
+            }
+        }
+    }
+
+    /**
+     * Refreshes every waiting shop now, such as before the plugin is
+     * disabled.
+     */
+    public void flush() {
+        round.addAll(dirty);
+        dirty.clear();
+        final ShopManager manager = plugin.getShopManager();
+        Shop shop;
+        while ((shop = round.poll()) != null) {
+            if (manager.getShop(shop.getLocation()) == shop) {
+                shop.setSignText();
+            }
+        }
+    }
+}
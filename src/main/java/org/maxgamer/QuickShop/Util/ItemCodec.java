@@ -0,0 +1,256 @@
+package org.maxgamer.QuickShop.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * A compact binary form of an ItemStack, used instead of YAML in the database.
+ *
+ * Items are written as the same map {@link ItemStack#serialize()} gives to
+ * YAML, so anything YAML can store is stored here too, and old items are
+ * upgraded by Bukkit the same way. The map is just written as tagged values
+ * rather than text, which is several times faster to read back since there is
+ * nothing to parse.
+ *
+ * The first byte is the format version. Data with a version this class doesn't
+ * know is rejected, so the caller can fall back to the YAML copy.
+ */
+public final class ItemCodec {
+    public static final int   VERSION   = 1;
+
+    private static final byte NULL      = 0;
+    private static final byte STRING    = 1;
+    private static final byte INT       = 2;
+    private static final byte LONG      = 3;
+    private static final byte DOUBLE    = 4;
+    private static final byte TRUE      = 5;
+    private static final byte FALSE     = 6;
+    private static final byte LIST      = 7;
+    private static final byte MAP       = 8;
+    /** A ConfigurationSerializable, written as its alias and then its map */
+    private static final byte OBJECT    = 9;
+
+    /** The key YAML uses for the alias of a ConfigurationSerializable */
+    private static final String TYPE_KEY = ConfigurationSerialization.SERIALIZED_TYPE_KEY;
+
+    private ItemCodec() {}
+
+    /**
+     * @param item
+     *            The item to encode
+     * @return The item in binary form
+     * @throws IOException
+     *             If the item holds a value this format can't store
+     */
+    public static byte[] encode(ItemStack item) throws IOException {
+        return encodeValue(item);
+    }
+
+    /**
+     * Encodes any value an item may be serialized to. Separate from
+     * {@link #encode(ItemStack)} so it can be tested without a server.
+     */
+    static byte[] encodeValue(Object value) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(VERSION);
+        writeValue(out, value);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param data
+     *            The result of {@link #encode(ItemStack)}
+     * @return A new item
+     * @throws IOException
+     *             If the data is damaged, from an unknown version or isn't an
+     *             item
+     */
+    public static ItemStack decode(byte[] data) throws IOException {
+        final Object value = decodeValue(data);
+        if (!(value instanceof ItemStack)) {
+            throw new IOException("Not an item: " + value);
+        }
+        return (ItemStack) value;
+    }
+
+    /**
+     * @param data
+     *            The result of {@link #encodeValue(Object)}
+     * @return The value, as YAML would have read it back
+     */
+    static Object decodeValue(byte[] data) throws IOException {
+        if (data.length == 0 || data[0] != VERSION) {
+            throw new IOException("Unknown item format " + (data.length == 0 ? "(empty)" : data[0]));
+        }
+        final ByteBuffer in = ByteBuffer.wrap(data, 1, data.length - 1);
+        try {
+            return readValue(in);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Damaged item data", e);
+        }
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof String) {
+            out.write(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            // YAML reads all of these back as Integer too
+            out.write(INT);
+            writeVarLong(out, ((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.write(LONG);
+            writeVarLong(out, (Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.write(DOUBLE);
+            final long bits = Double.doubleToRawLongBits(((Number) value).doubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Collection) {
+            final Collection<?> list = (Collection<?>) value;
+            out.write(LIST);
+            writeVarLong(out, list.size());
+            for (final Object element: list) {
+                writeValue(out, element);
+            }
+        } else if (value instanceof Map) {
+            out.write(MAP);
+            writeMap(out, (Map<?, ?>) value);
+        } else if (value instanceof ConfigurationSerializable) {
+            final ConfigurationSerializable object = (ConfigurationSerializable) value;
+            out.write(OBJECT);
+            writeString(out, ConfigurationSerialization.getAlias(object.getClass()));
+            writeMap(out, object.serialize());
+        } else {
+            throw new IOException("Can't encode " + value.getClass().getName());
+        }
+    }
+
+    private static void writeMap(ByteArrayOutputStream out, Map<?, ?> map) throws IOException {
+        writeVarLong(out, map.size());
+        for (final Map.Entry<?, ?> entry: map.entrySet()) {
+            writeString(out, String.valueOf(entry.getKey()));
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes a zigzag encoded variable length number, so small values of
+     * either sign take a single byte.
+     */
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static Object readValue(ByteBuffer in) throws IOException {
+        final byte tag = in.get();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case INT:
+            return (int) readVarLong(in);
+        case LONG:
+            return readVarLong(in);
+        case DOUBLE:
+            return in.getDouble();
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case LIST: {
+            final int size = readSize(in);
+            final List<Object> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readValue(in));
+            }
+            return list;
+        }
+        case MAP:
+            return readMap(in, readSize(in), null);
+        case OBJECT: {
+            final String alias = readString(in);
+            final Map<String, Object> map = readMap(in, readSize(in), alias);
+            final ConfigurationSerializable object = ConfigurationSerialization.deserializeObject(map);
+            if (object == null) {
+                throw new IOException("Could not deserialize " + alias);
+            }
+            return object;
+        }
+        default:
+            throw new IOException("Unknown tag " + tag);
+        }
+    }
+
+    private static Map<String, Object> readMap(ByteBuffer in, int size, String alias) throws IOException {
+        final Map<String, Object> map = new LinkedHashMap<>((size + 1) * 2);
+        if (alias != null) {
+            map.put(TYPE_KEY, alias);
+        }
+        for (int i = 0; i < size; i++) {
+            final String key = readString(in);
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        final int length = readSize(in);
+        final String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /**
+     * Reads a length, checking it fits in what is left of the data so damaged
+     * data can't make us allocate a huge array.
+     */
+    private static int readSize(ByteBuffer in) throws IOException {
+        final long size = readVarLong(in);
+        if (size < 0 || size > in.remaining()) {
+            throw new IOException("Bad length " + size);
+        }
+        return (int) size;
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+}
@@ -0,0 +1,138 @@
+package org.maxgamer.QuickShop.Util;
+
+import java.util.Map;
+
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+/**
+ * Matches items against one item the same way
+ * {@link Util#matches(ItemStack, ItemStack)} does, but with the work that only
+ * depends on that item done up front. A shop compares its item against every
+ * slot of a chest, and most slots hold something else, so those are rejected
+ * by type, by whether they have meta and by their enchantments without
+ * copying any meta.
+ *
+ * Slots which get past those checks need the slot's meta copied. To do that
+ * less often, the matcher remembers copies of the last few slots it accepted
+ * and rejected. A slot equal to one of them, which the server can check
+ * without copying any meta, gets the same answer.
+ *
+ * The item must not be changed after the matcher is made.
+ */
+public final class ItemMatcher {
+    /** How many accepted and how many rejected items are remembered */
+    private static final int          MEMO_SIZE = 8;
+    private static final ItemStack[]  NONE      = new ItemStack[0];
+
+    private final ItemStack           item;
+    private final Material            type;
+    private final boolean             hasMeta;
+    /** A copy of the item's meta, or null if it has none. Never modified. */
+    private final ItemMeta            meta;
+    /** The item's enchantments, which any matching item has too */
+    private final Map<Enchantment, Integer> enchants;
+    /** The item's name, worked out the first time it is asked for */
+    private volatile String           name;
+    /** Copies of items which matched and didn't, most recent first. Replaced, never modified. */
+    private volatile ItemStack[]      accepted  = NONE;
+    private volatile ItemStack[]      rejected  = NONE;
+
+    /**
+     * @param item
+     *            The item to match against. It is kept, not cloned.
+     */
+    public ItemMatcher(ItemStack item) {
+        this.item = item;
+        type = item.getType();
+        hasMeta = item.hasItemMeta();
+        meta = hasMeta ? item.getItemMeta() : null;
+        enchants = item.getEnchantments();
+    }
+
+    /**
+     * @return The item this matches against. Don't modify it.
+     */
+    public ItemStack getItem() {
+        return item;
+    }
+
+    /**
+     * @return The item's name, the same as Util.getName(getItem())
+     */
+    public String getName() {
+        String name = this.name;
+        if (name == null) {
+            name = Util.getName(item);
+            this.name = name;
+        }
+        return name;
+    }
+
+    /**
+     * @param other
+     *            The item to check, may be null
+     * @return The same as Util.matches(getItem(), other)
+     */
+    public boolean matches(ItemStack other) {
+        // Both checks are part of isSimilar() and of the fuzzy match, so
+        // anything failing them can't match either way.
+        if (other == null || other.getType() != type || other.hasItemMeta() != hasMeta) {
+            return false;
+        }
+        if (!hasMeta) {
+            return true;
+        }
+        // Both compare enchantments, which the server reads without copying
+        // the rest of the meta.
+        if (!enchants.equals(other.getEnchantments())) {
+            return false;
+        }
+        // Only the server's own items can be compared to the remembered ones
+        // without copying meta. Items from plugins are just matched.
+        final boolean remember = other.getClass() != ItemStack.class;
+        if (remember) {
+            if (contains(accepted, other)) {
+                return true;
+            }
+            if (contains(rejected, other)) {
+                return false;
+            }
+        }
+        final boolean matches = item.isSimilar(other) || Util.metaMatches(item, meta, other, null, false);
+        if (remember) {
+            if (matches) {
+                accepted = add(accepted, other);
+            } else {
+                rejected = add(rejected, other);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Items which are similar have the same type, damage and meta, so they
+     * match or don't alike.
+     */
+    private static boolean contains(ItemStack[] items, ItemStack other) {
+        for (final ItemStack seen: items) {
+            if (seen.isSimilar(other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A copy of items with a copy of other first, dropping the oldest
+     *         item if it is full
+     */
+    private static ItemStack[] add(ItemStack[] items, ItemStack other) {
+        final ItemStack[] added = new ItemStack[Math.min(items.length + 1, MEMO_SIZE)];
+        added[0] = other.clone();
+        System.arraycopy(items, 0, added, 1, added.length - 1);
+        return added;
+    }
+}
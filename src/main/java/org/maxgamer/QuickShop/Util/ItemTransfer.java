@@ -0,0 +1,175 @@
+package org.maxgamer.QuickShop.Util;
+
+import java.util.List;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Moves items between inventory contents arrays, as returned by
+ * {@link org.bukkit.inventory.Inventory#getContents()}, in a single pass over
+ * each. Inventory.addItem() and removeItem() rescan the whole inventory on
+ * every call, and only take one stack at a time, so a bulk trade used to scan
+ * each chest dozens of times.
+ *
+ * Nothing is written back to the inventories. Callers change the arrays here,
+ * then set them back once with setContents().
+ */
+public final class ItemTransfer {
+    private ItemTransfer() {
+    }
+
+    /**
+     * Takes matching items out of the given contents, first slot first.
+     *
+     * @param contents
+     *            The contents to take from. Changed in place.
+     * @param matcher
+     *            Matches the items to take
+     * @param amount
+     *            The most items to take
+     * @param taken
+     *            If not null, a copy of each part taken is added to it
+     * @return The number of items taken
+     */
+    public static int take(ItemStack[] contents, ItemMatcher matcher, int amount, List<ItemStack> taken) {
+        int remains = amount;
+        for (int i = 0; remains > 0 && i < contents.length; i++) {
+            final ItemStack stack = contents[i];
+            if (!matcher.matches(stack)) {
+                continue;
+            }
+            final int part = Math.min(remains, stack.getAmount());
+            if (taken != null) {
+                final ItemStack copy = stack.clone();
+                copy.setAmount(part);
+                taken.add(copy);
+            }
+            if (part == stack.getAmount()) {
+                contents[i] = null;
+            } else {
+                stack.setAmount(stack.getAmount() - part);
+            }
+            remains -= part;
+        }
+        return amount - remains;
+    }
+
+    /**
+     * Puts copies of an item into the given contents. Stacks of the same item
+     * which aren't full are topped up first, and then empty slots are used,
+     * the same as Inventory.addItem().
+     *
+     * @param contents
+     *            The contents to put the items in. Changed in place.
+     * @param item
+     *            The item to put in. It isn't changed or kept.
+     * @param amount
+     *            The number of items to put in
+     * @param maxStackSize
+     *            The inventory's largest stack size
+     * @return The number of items put in. Less than amount if they didn't
+     *         all fit.
+     */
+    public static int put(ItemStack[] contents, ItemStack item, int amount, int maxStackSize) {
+        return new Destination(contents, maxStackSize).put(item, amount);
+    }
+
+    /**
+     * Moves matching items from one contents array to another. Each stack
+     * keeps its own meta, so fuzzily matched items aren't changed by being
+     * traded. Items which don't fit are left where they were.
+     *
+     * @param from
+     *            The contents to take from. Changed in place.
+     * @param to
+     *            The contents to put into. Changed in place.
+     * @param matcher
+     *            Matches the items to move
+     * @param amount
+     *            The most items to move
+     * @param maxStackSize
+     *            The largest stack size of the inventory moved into
+     * @return The number of items moved
+     */
+    public static int move(ItemStack[] from, ItemStack[] to, ItemMatcher matcher, int amount, int maxStackSize) {
+        final Destination dest = new Destination(to, maxStackSize);
+        int remains = amount;
+        for (int i = 0; remains > 0 && i < from.length; i++) {
+            final ItemStack stack = from[i];
+            if (!matcher.matches(stack)) {
+                continue;
+            }
+            final int moved = dest.put(stack, Math.min(remains, stack.getAmount()));
+            if (moved == stack.getAmount()) {
+                from[i] = null;
+            } else {
+                stack.setAmount(stack.getAmount() - moved);
+            }
+            remains -= moved;
+        }
+        return amount - remains;
+    }
+
+    /**
+     * The slots of a contents array which items can be put in, found with one
+     * scan. Empty slots are used in order and never looked at again.
+     */
+    private static final class Destination {
+        private final ItemStack[] contents;
+        private final int         maxStackSize;
+        /** The empty slots */
+        private final int[]       empty;
+        private int               empties;
+        /** The next empty slot to use */
+        private int               nextEmpty;
+        /** The slots holding something, which may be topped up */
+        private final int[]       partial;
+        private int               partials;
+
+        private Destination(ItemStack[] contents, int maxStackSize) {
+            this.contents = contents;
+            this.maxStackSize = maxStackSize;
+            empty = new int[contents.length];
+            partial = new int[contents.length];
+            for (int i = 0; i < contents.length; i++) {
+                final ItemStack stack = contents[i];
+                if (isEmpty(stack)) {
+                    empty[empties++] = i;
+                } else if (stack.getAmount() < Math.min(maxStackSize, stack.getMaxStackSize())) {
+                    partial[partials++] = i;
+                }
+            }
+        }
+
+        private int put(ItemStack item, int amount) {
+            final int max = Math.min(maxStackSize, item.getMaxStackSize());
+            int remains = amount;
+            for (int p = 0; remains > 0 && p < partials; p++) {
+                final ItemStack stack = contents[partial[p]];
+                if (stack.getAmount() < max && stack.isSimilar(item)) {
+                    final int part = Math.min(remains, max - stack.getAmount());
+                    stack.setAmount(stack.getAmount() + part);
+                    remains -= part;
+                }
+            }
+            while (remains > 0 && nextEmpty < empties) {
+                final int slot = empty[nextEmpty++];
+                final int part = Math.min(remains, max);
+                final ItemStack stack = item.clone();
+                stack.setAmount(part);
+                contents[slot] = stack;
+                remains -= part;
+                if (part < max) {
+                    // The rest of this stack can be topped up later
+                    partial[partials++] = slot;
+                }
+            }
+            return amount - remains;
+        }
+    }
+
+    private static boolean isEmpty(ItemStack stack) {
+        return stack == null || stack.getType() == Material.AIR;
+    }
+}
@@ -0,0 +1,283 @@
+package org.maxgamer.QuickShop.Util;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A small open addressing (linear probing) hash map keyed by primitive longs.
+ * Keys are never boxed and lookups never allocate, which makes this suitable
+ * for packed chunk and block coordinates on hot paths.
+ *
+ * Values may not be null. This class is not thread safe.
+ *
+ * @param <V> The type of the values stored
+ */
+public class LongObjectMap<V> implements Iterable<V> {
+    private static final int MIN_CAPACITY = 4;
+
+    private long[]   keys;
+    private Object[] values;
+    private int      mask;
+    private int      size;
+    private int      modCount;
+
+    public LongObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected
+     *            The number of entries expected, used to size the table so
+     *            it doesn't have to grow.
+     */
+    public LongObjectMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Spreads the bits of the key so packed coordinates which only differ in
+     * their high bits don't all land in the same bucket.
+     */
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @param key
+     *            The key to look up
+     * @return The value mapped to the key, or null if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = mix(key) & mask;
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == key) {
+                return (V) value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps the given key to the given value.
+     *
+     * @param key
+     *            The key
+     * @param value
+     *            The value, not null
+     * @return The previous value mapped to the key, or null if there wasn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("LongObjectMap does not accept null values");
+        }
+        int i = mix(key) & mask;
+        Object existing;
+        while ((existing = values[i]) != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return (V) existing;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        modCount++;
+        if (++size * 2 > values.length) {
+            resize(values.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping for the given key. Uses backward shift deletion, so
+     * no tombstones are left behind and lookups stay short.
+     *
+     * @param key
+     *            The key to remove
+     * @return The value that was mapped to the key, or null if there wasn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = mix(key) & mask;
+        Object existing;
+        while ((existing = values[i]) != null) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                modCount++;
+                return (V) existing;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    private void shiftBack(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            final Object value = values[i];
+            if (value == null) {
+                break;
+            }
+            final int home = mix(keys[i]) & mask;
+            // Only move the entry back if its home slot isn't between the gap
+            // and where it currently sits (cyclically).
+            if (gap <= i ? (gap >= home || home > i) : (gap >= home && home > i)) {
+                keys[gap] = keys[i];
+                values[gap] = value;
+                gap = i;
+            }
+        }
+        values[gap] = null;
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            final Object value = oldValues[j];
+            if (value == null) {
+                continue;
+            }
+            int i = mix(oldKeys[j]) & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = value;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(values, null);
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Copies the values of this map into a new array. Useful when the map
+     * has to be modified while walking over its contents.
+     *
+     * @return A new array holding every value in this map.
+     */
+    public Object[] toArray() {
+        final Object[] out = new Object[size];
+        int n = 0;
+        for (final Object value: values) {
+            if (value != null) {
+                out[n++] = value;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns an iterator over the values in this map. The iterator is fail
+     * fast and does not support removal, use {@link #toArray()} if you need to
+     * modify the map while iterating.
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return new ValueIterator();
+    }
+
+    /**
+     * Returns an iterator over the keys in this map. Keys are returned in the
+     * same order as {@link #iterator()} returns values.
+     *
+     * @return an iterator of keys
+     */
+    public KeyIterator keyIterator() {
+        return new KeyIterator();
+    }
+
+    private abstract class Cursor {
+        private final int expectedModCount = modCount;
+        private int       next             = advance(0);
+        int               last             = -1;
+
+        private int advance(int from) {
+            while (from < values.length && values[from] == null) {
+                from++;
+            }
+            return from;
+        }
+
+        public boolean hasNext() {
+            return next < values.length;
+        }
+
+        int nextSlot() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= values.length) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = advance(next + 1);
+            return last;
+        }
+    }
+
+    private class ValueIterator extends Cursor implements Iterator<V> {
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            return (V) values[nextSlot()];
+        }
+    }
+
+    /**
+     * Iterates over the primitive keys of the map without boxing them.
+     */
+    public class KeyIterator extends Cursor {
+        /**
+         * @return The next key
+         */
+        public long nextKey() {
+            return keys[nextSlot()];
+        }
+
+        /**
+         * @return The value mapped to the key last returned by
+         *         {@link #nextKey()}
+         */
+        @SuppressWarnings("unchecked")
+        public V value() {
+            return (V) values[last];
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.maxgamer.QuickShop.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message from messages.yml, split once into its literal text and its
+ * {0}, {1}... placeholders, so filling it in is a single pass of appends
+ * instead of a String.replace() per argument.
+ */
+public final class MessageTemplate {
+    /** The literal text. There is one more of these than there are slots. */
+    private final String[] literals;
+    /** The argument each placeholder is filled with */
+    private final int[]    slots;
+
+    private MessageTemplate(String[] literals, int[] slots) {
+        this.literals = literals;
+        this.slots = slots;
+    }
+
+    /**
+     * @param raw
+     *            The message, with {0}, {1}... where the arguments go
+     * @return The compiled message
+     */
+    public static MessageTemplate compile(String raw) {
+        final List<String> literals = new ArrayList<>();
+        final List<Integer> slots = new ArrayList<>();
+        int start = 0;
+        int open = raw.indexOf('{');
+        while (open >= 0) {
+            int close = open + 1;
+            while (close < raw.length() && raw.charAt(close) >= '0' && raw.charAt(close) <= '9') {
+                close++;
+            }
+            // Anything other than {digits} is plain text
+            if (close == open + 1 || close >= raw.length() || raw.charAt(close) != '}' || close - open > 10
+                    || raw.charAt(open + 1) == '0' && close > open + 2) {
+                open = raw.indexOf('{', open + 1);
+                continue;
+            }
+            literals.add(raw.substring(start, open));
+            slots.add(Integer.parseInt(raw.substring(open + 1, close)));
+            start = close + 1;
+            open = raw.indexOf('{', start);
+        }
+        literals.add(raw.substring(start));
+
+        final int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new MessageTemplate(literals.toArray(new String[0]), slotArray);
+    }
+
+    /**
+     * Appends the message to the given builder. Placeholders without an
+     * argument, or whose argument is null, are left as they are.
+     *
+     * @param sb
+     *            The builder to append to
+     * @param args
+     *            The arguments, may be null
+     * @return The builder
+     */
+    public StringBuilder render(StringBuilder sb, String... args) {
+        sb.append(literals[0]);
+        for (int i = 0; i < slots.length; i++) {
+            final int slot = slots[i];
+            final String arg = args != null && slot < args.length ? args[slot] : null;
+            if (arg != null) {
+                sb.append(arg);
+            } else {
+                sb.append('{').append(slot).append('}');
+            }
+            sb.append(literals[i + 1]);
+        }
+        return sb;
+    }
+}
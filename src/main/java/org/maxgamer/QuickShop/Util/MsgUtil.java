@@ -8,7 +8,9 @@ import org.bukkit.enchantments.Enchantment;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.EnchantmentStorageMeta;
+import org.bukkit.inventory.meta.ItemMeta;
 import org.maxgamer.QuickShop.QuickShop;
+import org.maxgamer.QuickShop.Settings;
 import org.maxgamer.QuickShop.Shop.ContainerShop;
 import org.maxgamer.QuickShop.Shop.Shop;
 import org.maxgamer.QuickShop.exceptions.InvalidShopException;
@@ -18,6 +20,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -28,6 +31,11 @@ public class MsgUtil {
     private static QuickShop plugin;
     private static YamlConfiguration messages;
     private static HashMap<UUID, LinkedList<String>> player_messages = new HashMap<>();
+    /** Every message in messages.yml, ready to be filled in */
+    private static volatile Map<String, MessageTemplate> templates = Collections.emptyMap();
+    /** Reused by getMessage(), so it doesn't allocate a new builder each time */
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(128));
+    private static final String BORDER = ChatColor.DARK_PURPLE + "+---------------------------------------------------+";
 
     static {
         MsgUtil.plugin = QuickShop.instance;
@@ -55,6 +63,20 @@ public class MsgUtil {
 
         // Parse colour codes
         Util.parseColours(MsgUtil.messages);
+
+        // Split each message into its text and placeholders now, rather than
+        // every time it is sent
+        final Map<String, MessageTemplate> compiled = new HashMap<>();
+        for (final String key : MsgUtil.messages.getKeys(true)) {
+            if (MsgUtil.messages.isConfigurationSection(key)) {
+                continue;
+            }
+            final String raw = MsgUtil.messages.getString(key);
+            if (raw != null && !raw.isEmpty()) {
+                compiled.put(key, MessageTemplate.compile(raw));
+            }
+        }
+        MsgUtil.templates = compiled;
     }
 
     /**
@@ -166,10 +188,8 @@ public class MsgUtil {
     public static void sendShopInfo(Player p, Shop shop, int stock) throws InvalidShopException {
         // Potentially faster with an array?
         final ItemStack items = shop.getItem();
-        p.sendMessage("");
-        p.sendMessage("");
 
-        String shopOwner = shop.getOwner().getName();
+        String shopOwner = MsgUtil.plugin.getOwnerCache().getName(shop.getOwnerId());
         if (shopOwner == null || shopOwner.isEmpty()) {
             if (shop instanceof ContainerShop) {
                 // Use an alternative method to determine the plot owner
@@ -180,62 +200,46 @@ public class MsgUtil {
             }
         }
 
-        p.sendMessage(ChatColor.DARK_PURPLE + "+---------------------------------------------------+");
-        p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.shop-information"));
-        p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.owner", shopOwner));
-        p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.item", shop.getDataName()));
+        final StringBuilder menu = new StringBuilder(512);
+        menu.append("\n\n");
+        menu.append(MsgUtil.BORDER);
+        MsgUtil.appendLine(menu, "menu.shop-information");
+        MsgUtil.appendLine(menu, "menu.owner", shopOwner);
+        MsgUtil.appendLine(menu, "menu.item", shop.getDataName());
 
         if (Util.isTool(items.getType())) {
-            p.sendMessage(ChatColor.DARK_PURPLE + "| "
-                    + MsgUtil.getMessage("menu.damage-percent-remaining", Util.getToolPercentage(items)));
+            MsgUtil.appendLine(menu, "menu.damage-percent-remaining", Util.getToolPercentage(items));
         }
 
         Map<String, Object> data = Util.getCustomData(items);
         for (Entry<String, Object> entry : data.entrySet()) {
-            p.sendMessage(ChatColor.DARK_PURPLE + "| "
-                    + MsgUtil.getMessage("menu.item-data", entry.getKey(), String.valueOf(entry.getValue())));
+            MsgUtil.appendLine(menu, "menu.item-data", entry.getKey(), String.valueOf(entry.getValue()));
         }
 
         if (shop.isSelling()) {
-            p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.stock", "" + stock));
+            MsgUtil.appendLine(menu, "menu.stock", "" + stock);
         } else {
             final int space = shop.getRemainingSpace();
-            p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.space", "" + space));
+            MsgUtil.appendLine(menu, "menu.space", "" + space);
         }
 
-        p.sendMessage(ChatColor.DARK_PURPLE + "| "
-                + MsgUtil.getMessage("menu.price-per", shop.getDataName(), Util.format(shop.getPrice())));
+        MsgUtil.appendLine(menu, "menu.price-per", shop.getDataName(), Util.format(shop.getPrice()));
 
         if (shop.isBuying()) {
-            p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.this-shop-is-buying"));
+            MsgUtil.appendLine(menu, "menu.this-shop-is-buying");
         } else {
-            p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.this-shop-is-selling"));
+            MsgUtil.appendLine(menu, "menu.this-shop-is-selling");
         }
 
-        Map<Enchantment, Integer> enchs = items.getItemMeta().getEnchants();
-        if (enchs != null && !enchs.isEmpty()) {
-            p.sendMessage(ChatColor.DARK_PURPLE + "+--------------------" + MsgUtil.getMessage("menu.enchants")
-                    + "-----------------------+");
-            for (final Entry<Enchantment, Integer> entries : enchs.entrySet()) {
-                p.sendMessage(ChatColor.DARK_PURPLE + "| " + ChatColor.YELLOW + entries.getKey().getKey() + " "
-                        + entries.getValue());
-            }
-        }
+        MsgUtil.appendEnchants(menu, "+--------------------", "menu.enchants", "-----------------------+",
+                items.getItemMeta().getEnchants());
         if (items.getItemMeta() instanceof EnchantmentStorageMeta) {
             final EnchantmentStorageMeta stor = (EnchantmentStorageMeta) items.getItemMeta();
-            stor.getStoredEnchants();
-
-            enchs = stor.getStoredEnchants();
-            if (enchs != null && !enchs.isEmpty()) {
-                p.sendMessage(ChatColor.DARK_PURPLE + "+-----------------"
-                        + MsgUtil.getMessage("menu.stored-enchants") + "--------------------+");
-                for (final Entry<Enchantment, Integer> entries : enchs.entrySet()) {
-                    p.sendMessage(ChatColor.DARK_PURPLE + "| " + ChatColor.YELLOW + entries.getKey().getKey()
-                            + " " + entries.getValue());
-                }
-            }
+            MsgUtil.appendEnchants(menu, "+-----------------", "menu.stored-enchants", "--------------------+",
+                    stor.getStoredEnchants());
         }
-        p.sendMessage(ChatColor.DARK_PURPLE + "+---------------------------------------------------+");
+        menu.append('\n').append(MsgUtil.BORDER);
+        p.sendMessage(menu.toString());
     }
 
     public static void sendPurchaseSuccess(Player p, Shop shop, int amount) {
@@ -249,77 +253,41 @@ public class MsgUtil {
             QuickShop.instance.log(e.getMessage());
             return;
         }
-        p.sendMessage(ChatColor.DARK_PURPLE + "+---------------------------------------------------+");
-        p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.successful-purchase"));
-
-        p.sendMessage(ChatColor.DARK_PURPLE
-                + "| "
-                + MsgUtil.getMessage("menu.item-name-and-price", "" + amount, shopDataName,
-                Util.format((amount * shop.getPrice()))));
-
-        Map<Enchantment, Integer> enchs = shopItem.getItemMeta().getEnchants();
-        if (enchs != null && !enchs.isEmpty()) {
-            p.sendMessage(ChatColor.DARK_PURPLE + "+--------------------" + MsgUtil.getMessage("menu.enchants")
-                    + "-----------------------+");
-            for (final Entry<Enchantment, Integer> entries : enchs.entrySet()) {
-                p.sendMessage(ChatColor.DARK_PURPLE + "| " + ChatColor.YELLOW + entries.getKey().getKey() + " "
-                        + entries.getValue());
-            }
+        final StringBuilder menu = new StringBuilder(256);
+        menu.append(MsgUtil.BORDER);
+        MsgUtil.appendLine(menu, "menu.successful-purchase");
+        MsgUtil.appendLine(menu, "menu.item-name-and-price", "" + amount, shopDataName,
+                Util.format((amount * shop.getPrice())));
+
+        final ItemMeta meta = shopItem.getItemMeta();
+        MsgUtil.appendEnchants(menu, "+--------------------", "menu.enchants", "-----------------------+",
+                meta.getEnchants());
+        if (meta instanceof EnchantmentStorageMeta) {
+            MsgUtil.appendEnchants(menu, "+-----------------", "menu.stored-enchants", "--------------------+",
+                    ((EnchantmentStorageMeta) meta).getStoredEnchants());
         }
 
-        enchs = shopItem.getItemMeta().getEnchants();
-        if (enchs != null && !enchs.isEmpty()) {
-            p.sendMessage(ChatColor.DARK_PURPLE + "+-----------------" + MsgUtil.getMessage("menu.stored-enchants")
-                    + "--------------------+");
-            for (final Entry<Enchantment, Integer> entries : enchs.entrySet()) {
-                p.sendMessage(ChatColor.DARK_PURPLE + "| " + ChatColor.YELLOW + entries.getKey().getKey() + " "
-                        + entries.getValue());
-            }
-        }
-
-        try {
-            Class.forName("org.bukkit.inventory.meta.EnchantmentStorageMeta");
-
-            if (shopItem.getItemMeta() instanceof EnchantmentStorageMeta) {
-                final EnchantmentStorageMeta stor = (EnchantmentStorageMeta) shopItem.getItemMeta();
-                stor.getStoredEnchants();
-
-                enchs = stor.getStoredEnchants();
-                if (enchs != null && !enchs.isEmpty()) {
-                    p.sendMessage(ChatColor.DARK_PURPLE + "+-----------------"
-                            + MsgUtil.getMessage("menu.stored-enchants") + "--------------------+");
-                    for (final Entry<Enchantment, Integer> entries : enchs.entrySet()) {
-                        p.sendMessage(ChatColor.DARK_PURPLE + "| " + ChatColor.YELLOW + entries.getKey().getKey()
-                                + " " + entries.getValue());
-                    }
-                }
-            }
-        } catch (final ClassNotFoundException e) {
-            // They don't have an up to date enough build of CB to do this.
-            // TODO: Remove this when it becomes redundant
-        }
-
-        p.sendMessage(ChatColor.DARK_PURPLE + "+---------------------------------------------------+");
+        menu.append('\n').append(MsgUtil.BORDER);
+        p.sendMessage(menu.toString());
     }
 
     public static void sendSellSuccess(Player p, Shop shop, int amount) {
         final String shopDataName = shop.getDataName();
-        p.sendMessage(ChatColor.DARK_PURPLE + "+---------------------------------------------------+");
-        p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.successfully-sold"));
-        p.sendMessage(ChatColor.DARK_PURPLE
-                + "| "
-                + MsgUtil.getMessage("menu.item-name-and-price", "" + amount, shopDataName,
-                Util.format((amount * shop.getPrice()))));
-
-        if (MsgUtil.plugin.getConfig().getBoolean("show-tax")) {
-            final double tax = MsgUtil.plugin.getConfig().getDouble("tax");
+        final StringBuilder menu = new StringBuilder(256);
+        menu.append(MsgUtil.BORDER);
+        MsgUtil.appendLine(menu, "menu.successfully-sold");
+        MsgUtil.appendLine(menu, "menu.item-name-and-price", "" + amount, shopDataName,
+                Util.format((amount * shop.getPrice())));
+
+        final Settings settings = MsgUtil.plugin.getSettings();
+        if (settings.showTax) {
+            final double tax = settings.tax;
             final double total = amount * shop.getPrice();
             if (tax != 0) {
-                if (!p.equals(shop.getOwner().getPlayer())) {
-                    p.sendMessage(ChatColor.DARK_PURPLE + "| "
-                            + MsgUtil.getMessage("menu.sell-tax", "" + Util.format((tax * total))));
+                if (!p.getUniqueId().equals(shop.getOwnerId())) {
+                    MsgUtil.appendLine(menu, "menu.sell-tax", "" + Util.format((tax * total)));
                 } else {
-                    p.sendMessage(ChatColor.DARK_PURPLE + "| " + MsgUtil.getMessage("menu.sell-tax-self"));
+                    MsgUtil.appendLine(menu, "menu.sell-tax-self");
                 }
             }
         }
@@ -330,54 +298,86 @@ public class MsgUtil {
             p.sendMessage("Invalid Shop - error");
             QuickShop.instance.log(e.getMessage());
             return;
-        }        Map<Enchantment, Integer> enchs = shopItem.getItemMeta().getEnchants();
-        if (enchs != null && !enchs.isEmpty()) {
-            p.sendMessage(ChatColor.DARK_PURPLE + "+--------------------" + MsgUtil.getMessage("menu.enchants")
-                    + "-----------------------+");
-            for (final Entry<Enchantment, Integer> entries : enchs.entrySet()) {
-                p.sendMessage(ChatColor.DARK_PURPLE + "| " + ChatColor.YELLOW + entries.getKey().getKey() + " "
-                        + entries.getValue());
-            }
         }
-        if (shopItem.getItemMeta() instanceof EnchantmentStorageMeta) {
-            final EnchantmentStorageMeta stor = (EnchantmentStorageMeta) shopItem.getItemMeta();
-            stor.getStoredEnchants();
-
-            enchs = stor.getStoredEnchants();
-            if (enchs != null && !enchs.isEmpty()) {
-                p.sendMessage(ChatColor.DARK_PURPLE + "+--------------------"
-                        + MsgUtil.getMessage("menu.stored-enchants") + "-----------------------+");
-                for (final Entry<Enchantment, Integer> entries : enchs.entrySet()) {
-                    p.sendMessage(ChatColor.DARK_PURPLE + "| " + ChatColor.YELLOW + entries.getKey().getKey()
-                            + " " + entries.getValue());
-                }
-            }
+        final ItemMeta meta = shopItem.getItemMeta();
+        MsgUtil.appendEnchants(menu, "+--------------------", "menu.enchants", "-----------------------+",
+                meta.getEnchants());
+        if (meta instanceof EnchantmentStorageMeta) {
+            MsgUtil.appendEnchants(menu, "+--------------------", "menu.stored-enchants", "-----------------------+",
+                    ((EnchantmentStorageMeta) meta).getStoredEnchants());
         }
 
-        p.sendMessage(ChatColor.DARK_PURPLE + "+---------------------------------------------------+");
+        menu.append('\n').append(MsgUtil.BORDER);
+        p.sendMessage(menu.toString());
     }
 
-    public static String getMessage(String loc, String... args) {
-        String raw = MsgUtil.messages.getString(loc);
+    /**
+     * Appends a new line of a menu, holding the given message.
+     *
+     * @param menu
+     *            The menu so far
+     * @param loc
+     *            The message's key in messages.yml
+     * @param args
+     *            The message's arguments
+     */
+    private static void appendLine(StringBuilder menu, String loc, String... args) {
+        menu.append('\n').append(ChatColor.DARK_PURPLE).append("| ");
+        MsgUtil.appendMessage(menu, loc, args);
+    }
 
-        if (raw == null || raw.isEmpty()) {
-            return "Invalid message: " + loc;
+    /**
+     * Appends a heading and a line for each enchantment, if there are any.
+     *
+     * @param menu
+     *            The menu so far
+     * @param left
+     *            The border before the heading
+     * @param loc
+     *            The heading's key in messages.yml
+     * @param right
+     *            The border after the heading
+     * @param enchs
+     *            The enchantments, may be null
+     */
+    private static void appendEnchants(StringBuilder menu, String left, String loc, String right,
+            Map<Enchantment, Integer> enchs) {
+        if (enchs == null || enchs.isEmpty()) {
+            return;
         }
-        if (args == null) {
-            return raw;
+        menu.append('\n').append(ChatColor.DARK_PURPLE).append(left);
+        MsgUtil.appendMessage(menu, loc);
+        menu.append(right);
+        for (final Entry<Enchantment, Integer> entries : enchs.entrySet()) {
+            menu.append('\n').append(ChatColor.DARK_PURPLE).append("| ").append(ChatColor.YELLOW)
+                    .append(entries.getKey().getKey()).append(' ').append(entries.getValue());
         }
+    }
 
-        for (int i = 0; i < args.length; i++) {
-            if ((args[i]) != null) {
-                try {
-                    raw = raw.replace("{" + i + "}", args[i]);
-                } catch (NullPointerException e) {
-                    raw = raw.replace("{" + i + "}", "NULL");
-                    plugin.getLogger().warning("Invalid Message: Argument cannot be null, Msg:" + loc + "Argument #:" + i);
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Appends a message to the given builder, rather than making a String of
+     * it.
+     *
+     * @param sb
+     *            The builder to append to
+     * @param loc
+     *            The message's key in messages.yml
+     * @param args
+     *            The message's arguments. {0} is replaced with the first one,
+     *            and so on.
+     * @return The builder
+     */
+    public static StringBuilder appendMessage(StringBuilder sb, String loc, String... args) {
+        final MessageTemplate template = MsgUtil.templates.get(loc);
+        if (template == null) {
+            return sb.append("Invalid message: ").append(loc);
         }
-        return raw;
+        return template.render(sb, args);
+    }
+
+    public static String getMessage(String loc, String... args) {
+        final StringBuilder sb = MsgUtil.BUFFER.get();
+        sb.setLength(0);
+        return MsgUtil.appendMessage(sb, loc, args).toString();
     }
-}
\ No newline at end of file
+}
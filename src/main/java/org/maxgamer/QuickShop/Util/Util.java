@@ -1,11 +1,14 @@
 package org.maxgamer.QuickShop.Util;
 
 
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
@@ -45,6 +48,17 @@ public class Util {
     private static final HashSet<Material> tools = new HashSet<>();
     private static final HashSet<Material> blacklist = new HashSet<>();
     private static final HashSet<Material> shoppables = new HashSet<>();
+    /** The names of items whose name only depends on their type, by ordinal */
+    private static final String[] typeNames = new String[Material.values().length];
+    /** The names of potions and maps, which depend on their meta */
+    private static final Map<ItemStack, String> itemNames = new LinkedHashMap<ItemStack, String>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ItemStack, String> eldest) {
+            return size() > 256;
+        }
+    };
     private static QuickShop plugin;
 
     static {
@@ -215,13 +229,13 @@ public class Util {
         blocks[3] = b.getRelative(-1, 0, 0);
         blocks[4] = b.getRelative(0, 1, 0);
         for (Block c : blocks) {
-            Shop firstShop = plugin.getShopManager().getShop(c.getLocation());
+            Shop firstShop = plugin.getShopManager().getShop(c);
             // If firstShop is null but is container, it can be used to drain contents from a shop created
             // on secondHalf.
             Block secondHalf = getSecondHalf(c);
-            Shop secondShop = secondHalf == null ? null : plugin.getShopManager().getShop(secondHalf.getLocation());
-            if (firstShop != null && !p.getUniqueId().equals(firstShop.getOwner())
-                  || secondShop != null && !p.getUniqueId().equals(secondShop.getOwner())) {
+            Shop secondShop = secondHalf == null ? null : plugin.getShopManager().getShop(secondHalf);
+            if (firstShop != null && !p.getUniqueId().equals(firstShop.getOwnerId())
+                  || secondShop != null && !p.getUniqueId().equals(secondShop.getOwnerId())) {
                 return true;
             }
         }
@@ -249,6 +263,23 @@ public class Util {
         return stack;
     }
 
+    /**
+     * Encodes an item for the itemData column, see {@link ItemCodec}.
+     *
+     * @param iStack
+     *            The item to encode
+     * @return The encoded item, or null if it holds something only YAML can
+     *         store. The YAML copy is used for those.
+     */
+    public static byte[] encodeItem(ItemStack iStack) {
+        try {
+            return ItemCodec.encode(iStack);
+        } catch (final IOException e) {
+            QuickShop.instance.getLogger().warning("Could not encode " + iStack.getType() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Fetches an ItemStack's name - For example, converting INK_SAC:11 to
      * Dandellion Yellow, or WOOL:14 to Red Wool
@@ -257,6 +288,40 @@ public class Util {
      * @return The human readable item name.
      */
     public static String getName(ItemStack i) {
+        final Material type = i.getType();
+        if (type != Material.POTION && type != Material.MAP) {
+            // Racing threads can only both work out the same name
+            String name = typeNames[type.ordinal()];
+            if (name == null) {
+                name = type.isRecord() ? getRecordName(type) : prettifyText(type.getKey().getKey());
+                typeNames[type.ordinal()] = name;
+            }
+            return name;
+        }
+
+        ItemStack key = i;
+        if (key.getAmount() != 1) {
+            key = key.clone();
+            key.setAmount(1);
+        }
+        String name;
+        synchronized (itemNames) {
+            name = itemNames.get(key);
+        }
+        if (name == null) {
+            name = computeName(i);
+            if (key == i) {
+                // The caller may change theirs afterwards
+                key = key.clone();
+            }
+            synchronized (itemNames) {
+                itemNames.put(key, name);
+            }
+        }
+        return name;
+    }
+
+    private static String computeName(ItemStack i) {
         if (i.getType() == Material.POTION) {
             ItemMeta meta = i.getItemMeta();
             String name = null;
@@ -466,14 +531,14 @@ public class Util {
     }
 
 
-    private static void output(boolean output, CommandSender sender, String message) {
+    private static void output(boolean output, CommandSender sender, Supplier<String> message) {
         if (!output) {
             return;
         }
         if (sender == null) {
             return;
         }
-        sender.sendMessage(message);
+        sender.sendMessage(message.get());
     }
 
     /**
@@ -497,9 +562,9 @@ public class Util {
         if (stack1.isSimilar(stack2)) {
             //Qty does not need to match here.
             QuickShop.debugMsg("Item match on itemStack.isSimilar():");
-            QuickShop.debugMsg("Stack1:" + stack1.toString());
-            QuickShop.debugMsg("Stack2:" + stack2.toString());
-            output(output, sender, "QS MATCH SUCCESS: isSimilar match: " + stack1 + " matched " + stack2);
+            QuickShop.debugMsg(() -> "Stack1:" + stack1.toString());
+            QuickShop.debugMsg(() -> "Stack2:" + stack2.toString());
+            output(output, sender, () -> "QS MATCH SUCCESS: isSimilar match: " + stack1 + " matched " + stack2);
             return true;
         }
         if (stack2 == null) {
@@ -507,92 +572,105 @@ public class Util {
         }
         //Fuzzy match now...
         if (stack1.getType() != stack2.getType()) {
-            output(output, sender, "QS MATCH FAIL: " + stack1 + " didn't match " + stack2);
+            output(output, sender, () -> "QS MATCH FAIL: " + stack1 + " didn't match " + stack2);
             return false; // Not the same material
         }
         if (stack1.hasItemMeta() != stack2.hasItemMeta()) {
-            output(output, sender, "QS MATCH FAIL: " + stack1 + " didn't match " + stack2);
+            output(output, sender, () -> "QS MATCH FAIL: " + stack1 + " didn't match " + stack2);
             return false;
         }
         if (stack1.hasItemMeta()) {
-            if (stack1.getItemMeta().getClass() == stack2.getItemMeta().getClass()) {
-                ItemMeta meta1 = stack1.getItemMeta();
-                ItemMeta meta2 = stack2.getItemMeta();
-                if (meta1.getLore() != meta2.getLore()) {
+            return metaMatches(stack1, stack1.getItemMeta(), stack2, sender, output);
+        } else { //at this point stack1 has no meta - so neither should stack 2
+            QuickShop.debugMsg("Item match on stack1 had no META:");
+            QuickShop.debugMsg(() -> "Stack1:" + stack1.toString());
+            QuickShop.debugMsg(() -> "Stack2:" + stack2.toString());
+            return true;
+        }
+    }
+
+    /**
+     * The fuzzy part of {@link #matches(ItemStack, ItemStack)}, for two items
+     * of the same type which both have meta.
+     *
+     * @param stack1 The first item
+     * @param meta1  The meta of the first item. It isn't modified, so one copy
+     *               can be used for many comparisons.
+     * @param stack2 The second item
+     * @return true if the meta of both items matches
+     */
+    static boolean metaMatches(ItemStack stack1, ItemMeta meta1, ItemStack stack2, CommandSender sender, boolean output) {
+        final ItemMeta meta2 = stack2.getItemMeta();
+        if (meta1.getClass() == meta2.getClass()) {
+            if (meta1.getLore() != meta2.getLore()) {
+                return false;
+            }
+            if (!meta1.getDisplayName().equals(meta2.getDisplayName())) {
+                return false;
+            }
+            if (!meta1.getItemFlags().equals(meta2.getItemFlags())) {
+                return false;
+            }
+            if (!meta1.getEnchants().equals(meta2.getEnchants())) {
+                return false;
+            }
+            if (meta1 instanceof BookMeta) {
+                BookMeta bmeta1 = (BookMeta) meta1;
+                BookMeta bmeta2 = (BookMeta) meta2;
+                if (!bmeta1.getPages().equals(bmeta2.getPages()) || !bmeta1.getTitle().equals(bmeta2.getTitle())) {
+                    output(output, sender, () -> "QS MATCH FAIL: BookMeta mismatch -" + stack1 + " didn't match " + stack2);
                     return false;
                 }
-                if (!meta1.getDisplayName().equals(meta2.getDisplayName())) {
+            }
+            if (meta1 instanceof PotionMeta) {
+                PotionData potionData = ((PotionMeta) meta1).getBasePotionData();
+                PotionData pdata2 = ((PotionMeta) meta2).getBasePotionData();
+                if (!potionData.equals(pdata2)) {
+                    output(output, sender, () -> "QS MATCH FAIL: PotionData mismatch -" + stack1 + " didn't match " + stack2);
                     return false;
                 }
-                if (!meta1.getItemFlags().equals(meta2.getItemFlags())) {
+            }
+            if (meta1 instanceof FireworkMeta) {
+                FireworkMeta fmeta = (FireworkMeta) meta1;
+                if (!fmeta.getEffects().equals(((FireworkMeta) meta2).getEffects()) || fmeta.getPower() != ((FireworkMeta) meta2).getPower()) {
+                    output(output, sender, () -> "QS MATCH FAIL: FireworkMeta mismatch -" + stack1 + " didn't match " + stack2);
                     return false;
                 }
-                if (!meta1.getEnchants().equals(meta2.getEnchants())) {
+            }
+            if (meta1 instanceof SkullMeta) {
+                if (((SkullMeta) meta1).hasOwner() != ((SkullMeta) meta2).hasOwner() || (((SkullMeta) meta1).hasOwner() &&
+                      ((SkullMeta) meta1).getOwningPlayer().getUniqueId() != ((SkullMeta) meta2).getOwningPlayer().getUniqueId())) {
+                    output(output, sender, () -> "QS MATCH FAIL: SkullMeta mismatch -" + stack1 + " didn't match " + stack2);
                     return false;
                 }
-                if (meta1 instanceof BookMeta) {
-                    BookMeta bmeta1 = (BookMeta) meta1;
-                    BookMeta bmeta2 = (BookMeta) meta2;
-                    if (!bmeta1.getPages().equals(bmeta2.getPages()) || !bmeta1.getTitle().equals(bmeta2.getTitle())) {
-                        output(output, sender, "QS MATCH FAIL: BookMeta mismatch -" + stack1 + " didn't match " + stack2);
-                        return false;
-                    }
-                }
-                if (meta1 instanceof PotionMeta) {
-                    PotionData potionData = ((PotionMeta) meta1).getBasePotionData();
-                    PotionData pdata2 = ((PotionMeta) meta2).getBasePotionData();
-                    if (!potionData.equals(pdata2)) {
-                        output(output, sender, "QS MATCH FAIL: PotionData mismatch -" + stack1 + " didn't match " + stack2);
-                        return false;
-                    }
-                }
-                if (meta1 instanceof FireworkMeta) {
-                    FireworkMeta fmeta = (FireworkMeta) meta1;
-                    if (!fmeta.getEffects().equals(((FireworkMeta) meta2).getEffects()) || fmeta.getPower() != ((FireworkMeta) meta2).getPower()) {
-                        output(output, sender, "QS MATCH FAIL: FireworkMeta mismatch -" + stack1 + " didn't match " + stack2);
-                        return false;
-                    }
-                }
-                if (meta1 instanceof SkullMeta) {
-                    if (((SkullMeta) meta1).hasOwner() != ((SkullMeta) meta2).hasOwner() || (((SkullMeta) meta1).hasOwner() &&
-                          ((SkullMeta) meta1).getOwningPlayer().getUniqueId() != ((SkullMeta) meta2).getOwningPlayer().getUniqueId())) {
-                        output(output, sender, "QS MATCH FAIL: SkullMeta mismatch -" + stack1 + " didn't match " + stack2);
-                        return false;
-                    }
 
+            }
+            if (meta1 instanceof BannerMeta) {
+                BannerMeta bannerMeta = (BannerMeta) meta1;
+                BannerMeta bmeta2 = (BannerMeta) meta2;
+                if (!bannerMeta.getPatterns().equals(bmeta2.getPatterns())) {
+                    output(output, sender, () -> "QS MATCH FAIL: BannerMeta mismatch -" + stack1 + " didn't match " + stack2);
+                    return false;
                 }
-                if (meta1 instanceof BannerMeta) {
-                    BannerMeta bannerMeta = (BannerMeta) meta1;
-                    BannerMeta bmeta2 = (BannerMeta) meta2;
-                    if (!bannerMeta.getPatterns().equals(bmeta2.getPatterns())) {
-                        output(output, sender, "QS MATCH FAIL: BannerMeta mismatch -" + stack1 + " didn't match " + stack2);
-                        return false;
-                    }
-                }
-                if (meta1 instanceof EnchantmentStorageMeta) {
-                    if (!((EnchantmentStorageMeta) meta1).getStoredEnchants().equals(((EnchantmentStorageMeta) meta2).getStoredEnchants())) {
-                        output(output, sender, "QS MATCH FAIL: EnchantStorageMeta mismatch -" + stack1 + " didn't match " + stack2);
-                        return false;
-                    } else {
-                        QuickShop.debugMsg("Item enchant meta matched");
-                        QuickShop.debugMsg("Stack1:" + meta1.getEnchants().keySet().toString());
-                        QuickShop.debugMsg("Stack2:" + meta2.getEnchants().keySet().toString());
-                    }
+            }
+            if (meta1 instanceof EnchantmentStorageMeta) {
+                if (!((EnchantmentStorageMeta) meta1).getStoredEnchants().equals(((EnchantmentStorageMeta) meta2).getStoredEnchants())) {
+                    output(output, sender, () -> "QS MATCH FAIL: EnchantStorageMeta mismatch -" + stack1 + " didn't match " + stack2);
+                    return false;
+                } else {
+                    QuickShop.debugMsg("Item enchant meta matched");
+                    QuickShop.debugMsg(() -> "Stack1:" + meta1.getEnchants().keySet().toString());
+                    QuickShop.debugMsg(() -> "Stack2:" + meta2.getEnchants().keySet().toString());
                 }
-                output(output, sender, "QS MATCH SUCCESS: item meta matches: " + stack1 + " matched " + stack2);
-                QuickShop.debugMsg("Item match on stack1 had META:");
-                QuickShop.debugMsg("Stack1:" + stack1.toString());
-                QuickShop.debugMsg("Stack2:" + stack2.toString());
-                return true;
             }
-            output(output, sender, "QS MATCH FAIL: meta class failed - " + stack1 + " didn't match " + stack2);
-            return false;
-        } else { //at this point stack1 has no meta - so neither should stack 2
-            QuickShop.debugMsg("Item match on stack1 had no META:");
-            QuickShop.debugMsg("Stack1:" + stack1.toString());
-            QuickShop.debugMsg("Stack2:" + stack2.toString());
+            output(output, sender, () -> "QS MATCH SUCCESS: item meta matches: " + stack1 + " matched " + stack2);
+            QuickShop.debugMsg("Item match on stack1 had META:");
+            QuickShop.debugMsg(() -> "Stack1:" + stack1.toString());
+            QuickShop.debugMsg(() -> "Stack2:" + stack2.toString());
             return true;
         }
+        output(output, sender, () -> "QS MATCH FAIL: meta class failed - " + stack1 + " didn't match " + stack2);
+        return false;
     }
 
     /**
@@ -611,7 +689,8 @@ public class Util {
     }
 
     public static boolean checkIfSign(Block block){
-        return block.getState().getBlockData() instanceof WallSign;
+        // The block data is enough, no need for a tile entity snapshot
+        return block.getBlockData() instanceof WallSign;
     }
     /**
      * @param m The material to check if it is blacklisted
@@ -645,12 +724,24 @@ public class Util {
      * @return The number of items that match in this inventory.
      */
     public static int countItems(Inventory inv, @NotNull ItemStack item) {
+        return countItems(inv, new ItemMatcher(item));
+    }
+
+    /**
+     * Counts the number of items in the given inventory which the matcher
+     * matches.
+     *
+     * @param inv     The inventory to search
+     * @param matcher Matches the item to search for
+     * @return The number of items that match in this inventory.
+     */
+    public static int countItems(Inventory inv, @NotNull ItemMatcher matcher) {
         if (inv == null) {
             return 0;
         }
         int items = 0;
         for (final ItemStack iStack : inv.getContents()) {
-            if (Util.matches(item, iStack)) {
+            if (matcher.matches(iStack)) {
                 items += iStack.getAmount();
             }
         }
@@ -666,12 +757,24 @@ public class Util {
      * @return The number of items that can be given to the inventory safely.
      */
     public static int countSpace(Inventory inv, ItemStack item) {
+        return countSpace(inv, new ItemMatcher(item));
+    }
+
+    /**
+     * Returns the number of items that can be given to the inventory safely.
+     *
+     * @param inv     The inventory to count
+     * @param matcher Matches the item prototype
+     * @return The number of items that can be given to the inventory safely.
+     */
+    public static int countSpace(Inventory inv, ItemMatcher matcher) {
+        final int maxStackSize = matcher.getItem().getMaxStackSize();
         int space = 0;
         for (final ItemStack iStack : inv.getContents()) {
             if (iStack == null || iStack.getType() == Material.AIR) {
-                space += item.getMaxStackSize();
-            } else if (Util.matches(item, iStack)) {
-                space += item.getMaxStackSize() - iStack.getAmount();
+                space += maxStackSize;
+            } else if (matcher.matches(iStack)) {
+                space += maxStackSize - iStack.getAmount();
             }
         }
         return space;
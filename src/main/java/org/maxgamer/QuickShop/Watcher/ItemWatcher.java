@@ -1,58 +1,162 @@
 package org.maxgamer.QuickShop.Watcher;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map.Entry;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.maxgamer.QuickShop.QuickShop;
+import org.maxgamer.QuickShop.Shop.DisplayItem;
 import org.maxgamer.QuickShop.Shop.Shop;
 import org.maxgamer.QuickShop.Shop.ShopChunk;
+import org.maxgamer.QuickShop.Shop.ShopManager;
 
 /**
  * @author Netherfoam
  *         Maintains the display items, restoring them when needed.
  *         Also deletes invalid items.
+ *
+ *         Only shops in loaded chunks are watched, which shops add and remove
+ *         themselves from as they load and unload. They are checked in turn,
+ *         a few each tick, so that each is checked about once per interval
+ *         without the whole lot being checked in one tick. Shops whose display
+ *         item was respawned have the duplicates in their chunk removed
+ *         afterwards, once for the whole chunk. Runs on the server thread,
+ *         once a tick.
  */
 public class ItemWatcher implements Runnable {
-    private final QuickShop plugin;
+    private final QuickShop        plugin;
+    private final int              interval;
+    private final long             tickBudget;
 
-    public ItemWatcher(QuickShop plugin) {
+    /** Shops in loaded chunks */
+    private final Set<Shop>        watched = Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * The order shops are checked in. Shops which stopped being watched are
+     * dropped when they are reached.
+     */
+    private final ArrayDeque<Shop> queue   = new ArrayDeque<>();
+    /** The shops in the queue, so none are queued twice */
+    private final Set<Shop>        queued  = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** Chunks to remove duplicate display items from */
+    private final Set<ShopChunk>   sweeps  = new LinkedHashSet<>();
+    /**
+     * How many shops may be checked, built up a fraction of a shop each tick
+     * when there are fewer shops than ticks in the interval
+     */
+    private double                 credit;
+
+    /**
+     * @param plugin
+     *            The plugin
+     * @param interval
+     *            The ticks between checks of one shop
+     * @param tickBudget
+     *            The most time to spend checking shops each tick, in
+     *            microseconds
+     */
+    public ItemWatcher(QuickShop plugin, int interval, long tickBudget) {
         this.plugin = plugin;
+        this.interval = Math.max(1, interval);
+        this.tickBudget = TimeUnit.MICROSECONDS.toNanos(Math.max(1, tickBudget));
+    }
+
+    /**
+     * Starts checking a shop, once its chunk has loaded.
+     *
+     * @param shop
+     *            The shop
+     */
+    public void watch(Shop shop) {
+        watched.add(shop);
+        if (queued.add(shop)) {
+            queue.add(shop);
+        }
+    }
+
+    /**
+     * Stops checking a shop, once its chunk has unloaded.
+     *
+     * @param shop
+     *            The shop
+     */
+    public void unwatch(Shop shop) {
+        watched.remove(shop);
+    }
+
+    /**
+     * Removes the duplicate display items in a shop's chunk in a later tick,
+     * along with those of any other shop in the chunk asking for the same.
+     *
+     * @param loc
+     *            The location of the shop
+     */
+    public void sweepLater(Location loc) {
+        sweeps.add(new ShopChunk(loc.getWorld().getName(), loc.getBlockX() >> 4, loc.getBlockZ() >> 4));
+    }
+
+    /**
+     * Removes the duplicate display items in a chunk now, such as once its
+     * shops have loaded.
+     *
+     * @param chunk
+     *            The chunk
+     */
+    public void sweep(Chunk chunk) {
+        sweeps.remove(new ShopChunk(chunk.getWorld().getName(), chunk.getX(), chunk.getZ()));
+        DisplayItem.removeDupes(chunk, plugin.getShopManager().getChunkShops(chunk));
+    }
+
+    /**
+     * @return The number of shops being checked
+     */
+    public int getWatched() {
+        return watched.size();
     }
 
     @Override
     public void run() {
-        final List<Shop> toRemove = new ArrayList<>(1);
-        for (final Entry<String, HashMap<ShopChunk, HashMap<Location, Shop>>> inWorld: plugin.getShopManager()
-                .getShops().entrySet()) {
-            // This world
-            final World world = Bukkit.getWorld(inWorld.getKey());
-            if (world == null) {
-                continue; // world not loaded.
+        // Enough shops each tick to get round them all once per interval.
+        // Unused credit isn't carried past one tick's worth, so falling
+        // behind doesn't lead to a burst of checks later.
+        final double rate = (double) watched.size() / interval;
+        credit = Math.min(credit + rate, Math.max(1, rate));
+        final ShopManager manager = plugin.getShopManager();
+        final long deadline = System.nanoTime() + tickBudget;
+        Shop shop;
+        while (credit >= 1 && System.nanoTime() < deadline && (shop = queue.poll()) != null) {
+            // Skip shops unloaded or removed since they were queued
+            if (!watched.contains(shop) || manager.getShop(shop.getLocation()) != shop) {
+                queued.remove(shop);
+                watched.remove(shop);
+                continue;
             }
-
-            for (final Entry<ShopChunk, HashMap<Location, Shop>> inChunk: inWorld.getValue().entrySet()) {
-                if (!world.isChunkLoaded(inChunk.getKey().getX(), inChunk.getKey().getZ())) {
-                    // If the chunk is not loaded, next chunk!
-                    continue;
-                }
-
-                for (final Shop shop: inChunk.getValue().values()) {
-                    // Validate the shop.
-                    if (!shop.isValid()) {
-                        toRemove.add(shop);
-                    }
-                }
+            credit--;
+            if (shop.isValid()) {
+                queue.add(shop);
+            } else {
+                queued.remove(shop);
+                watched.remove(shop);
+                shop.delete();
             }
         }
 
-        // Now we can remove it.
-        for (final Shop shop: toRemove) {
-            shop.delete();
+        final Iterator<ShopChunk> it = sweeps.iterator();
+        while (it.hasNext() && System.nanoTime() < deadline) {
+            final ShopChunk chunk = it.next();
+            it.remove();
+            final World world = Bukkit.getWorld(chunk.getWorld());
+            if (world != null && world.isChunkLoaded(chunk.getX(), chunk.getZ())) {
+                DisplayItem.removeDupes(world.getChunkAt(chunk.getX(), chunk.getZ()),
+                        manager.getChunkShops(chunk.getWorld(), chunk.getX(), chunk.getZ()));
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,122 @@
+package org.maxgamer.QuickShop.Shop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Radius and nearest neighbour queries on the quadtree against a linear scan
+ * of the same shops, which is what the lookups did before.
+ *
+ * Run with: mvn -Pbenchmark verify -Dbenchmark=ShopQuadTree
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShopQuadTreeBenchmark {
+    /** Shops spread over a 10k by 10k block area */
+    private static final int SPREAD = 5000;
+    private static final int QUERIES = 1024;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int shopCount;
+
+    private List<Shop>   shops;
+    private ShopQuadTree tree;
+    private double[]     points;
+    private int          next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final Random random = new Random(1);
+        shops = new ArrayList<>(shopCount);
+        tree = new ShopQuadTree();
+        for (int i = 0; i < shopCount; i++) {
+            final Shop shop = ShopQuadTreeTest.shopAt(random.nextInt(SPREAD * 2) - SPREAD, random.nextInt(256),
+                    random.nextInt(SPREAD * 2) - SPREAD);
+            shops.add(shop);
+            tree.insert(shop);
+        }
+        points = new double[QUERIES * 3];
+        for (int i = 0; i < points.length; i += 3) {
+            points[i] = random.nextInt(SPREAD * 2) - SPREAD;
+            points[i + 1] = random.nextInt(256);
+            points[i + 2] = random.nextInt(SPREAD * 2) - SPREAD;
+        }
+    }
+
+    private int nextPoint() {
+        next = (next + 3) % points.length;
+        return next;
+    }
+
+    private static double distanceSquared(Shop shop, double x, double y, double z) {
+        final Location loc = shop.getLocation();
+        final double dx = loc.getBlockX() - x;
+        final double dy = loc.getBlockY() - y;
+        final double dz = loc.getBlockZ() - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    @Benchmark
+    public List<Shop> radiusTree() {
+        final int p = nextPoint();
+        return tree.withinRadius(points[p], points[p + 1], points[p + 2], 100, null);
+    }
+
+    @Benchmark
+    public List<Shop> radiusLinear() {
+        final int p = nextPoint();
+        final List<Shop> found = new ArrayList<>();
+        for (final Shop shop: shops) {
+            if (distanceSquared(shop, points[p], points[p + 1], points[p + 2]) <= 100 * 100) {
+                found.add(shop);
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public List<Shop> nearestTree() {
+        final int p = nextPoint();
+        return tree.nearest(points[p], points[p + 1], points[p + 2], 10, 1000, null);
+    }
+
+    @Benchmark
+    public List<Shop> nearestLinear() {
+        final int p = nextPoint();
+        final double x = points[p], y = points[p + 1], z = points[p + 2];
+        final PriorityQueue<Shop> best = new PriorityQueue<>(11,
+                (a, b) -> Double.compare(distanceSquared(b, x, y, z), distanceSquared(a, x, y, z)));
+        for (final Shop shop: shops) {
+            if (distanceSquared(shop, x, y, z) <= 1000 * 1000) {
+                best.add(shop);
+                if (best.size() > 10) {
+                    best.poll();
+                }
+            }
+        }
+        final List<Shop> found = new ArrayList<>(best);
+        found.sort((a, b) -> Double.compare(distanceSquared(a, x, y, z), distanceSquared(b, x, y, z)));
+        return found;
+    }
+}
@@ -0,0 +1,271 @@
+package org.maxgamer.QuickShop.Shop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import org.bukkit.Location;
+import org.junit.Test;
+
+/**
+ * Checks every ShopQuadTree query against a brute force scan of the same
+ * shops.
+ */
+public class ShopQuadTreeTest {
+    /**
+     * @return A shop that only knows its location, which is all the tree
+     *         looks at
+     */
+    static Shop shopAt(int x, int y, int z) {
+        final Location loc = new Location(null, x, y, z);
+        return (Shop) Proxy.newProxyInstance(Shop.class.getClassLoader(), new Class<?>[] { Shop.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getLocation":
+                        return loc;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "Shop(" + x + ", " + y + ", " + z + ")";
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static double distanceSquared(Shop shop, double x, double y, double z) {
+        final Location loc = shop.getLocation();
+        final double dx = loc.getBlockX() - x;
+        final double dy = loc.getBlockY() - y;
+        final double dz = loc.getBlockZ() - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static List<Shop> randomShops(Random random, int count, int spread) {
+        final List<Shop> shops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shops.add(shopAt(random.nextInt(spread * 2) - spread, random.nextInt(256),
+                    random.nextInt(spread * 2) - spread));
+        }
+        return shops;
+    }
+
+    private static ShopQuadTree treeOf(List<Shop> shops) {
+        final ShopQuadTree tree = new ShopQuadTree();
+        for (final Shop shop: shops) {
+            tree.insert(shop);
+        }
+        return tree;
+    }
+
+    private static void assertSameShops(List<Shop> expected, List<Shop> actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+    }
+
+    private static void checkRadius(ShopQuadTree tree, List<Shop> shops, double x, double y, double z,
+            double radius, Predicate<Shop> filter) {
+        final List<Shop> expected = new ArrayList<>();
+        for (final Shop shop: shops) {
+            if (distanceSquared(shop, x, y, z) <= radius * radius && (filter == null || filter.test(shop))) {
+                expected.add(shop);
+            }
+        }
+        assertSameShops(expected, tree.withinRadius(x, y, z, radius, filter));
+    }
+
+    private static void checkBox(ShopQuadTree tree, List<Shop> shops, int minX, int minY, int minZ, int maxX,
+            int maxY, int maxZ, Predicate<Shop> filter) {
+        final List<Shop> expected = new ArrayList<>();
+        int inColumns = 0;
+        for (final Shop shop: shops) {
+            final Location loc = shop.getLocation();
+            if (loc.getBlockX() >= minX && loc.getBlockX() <= maxX && loc.getBlockZ() >= minZ
+                    && loc.getBlockZ() <= maxZ) {
+                inColumns++;
+                if (loc.getBlockY() >= minY && loc.getBlockY() <= maxY && (filter == null || filter.test(shop))) {
+                    expected.add(shop);
+                }
+            }
+        }
+        assertSameShops(expected, tree.withinBox(minX, minY, minZ, maxX, maxY, maxZ, filter));
+        assertTrue("countNear must never miss a shop in the box",
+                tree.countNear(minX, minZ, maxX, maxZ) >= inColumns);
+    }
+
+    /**
+     * Ties make the exact shops ambiguous, so only the distances are compared.
+     */
+    private static void checkNearest(ShopQuadTree tree, List<Shop> shops, double x, double y, double z, int k,
+            double maxDistance, Predicate<Shop> filter) {
+        final List<Double> expected = new ArrayList<>();
+        for (final Shop shop: shops) {
+            final double d = distanceSquared(shop, x, y, z);
+            if (d <= maxDistance * maxDistance && (filter == null || filter.test(shop))) {
+                expected.add(d);
+            }
+        }
+        expected.sort(Comparator.naturalOrder());
+        final List<Shop> found = tree.nearest(x, y, z, k, maxDistance, filter);
+        assertEquals(Math.min(k, expected.size()), found.size());
+        for (int i = 0; i < found.size(); i++) {
+            final Shop shop = found.get(i);
+            assertEquals(expected.get(i), distanceSquared(shop, x, y, z), 0);
+            assertTrue(filter == null || filter.test(shop));
+        }
+    }
+
+    @Test
+    public void emptyTree() {
+        final ShopQuadTree tree = new ShopQuadTree();
+        assertEquals(0, tree.size());
+        assertTrue(tree.withinRadius(0, 64, 0, 100, null).isEmpty());
+        assertTrue(tree.nearest(0, 64, 0, 5, 100, null).isEmpty());
+        assertEquals(0, tree.countNear(-100, -100, 100, 100));
+    }
+
+    @Test
+    public void queriesMatchBruteForce() {
+        final Random random = new Random(42);
+        final List<Shop> shops = randomShops(random, 5000, 2000);
+        final ShopQuadTree tree = treeOf(shops);
+        assertEquals(shops.size(), tree.size());
+
+        final Predicate<Shop> evenX = shop -> (shop.getLocation().getBlockX() & 1) == 0;
+        for (int i = 0; i < 200; i++) {
+            final double x = random.nextInt(4400) - 2200 + random.nextDouble();
+            final double y = random.nextInt(256) + random.nextDouble();
+            final double z = random.nextInt(4400) - 2200 + random.nextDouble();
+            final Predicate<Shop> filter = i % 2 == 0 ? null : evenX;
+            checkRadius(tree, shops, x, y, z, random.nextInt(300), filter);
+            checkNearest(tree, shops, x, y, z, 1 + random.nextInt(20), random.nextInt(1000), filter);
+
+            final int minX = (int) x - random.nextInt(300);
+            final int minZ = (int) z - random.nextInt(300);
+            checkBox(tree, shops, minX, 0, minZ, minX + random.nextInt(600), 255, minZ + random.nextInt(600),
+                    filter);
+            checkBox(tree, shops, minX, 60, minZ, minX + random.nextInt(600), 70, minZ + random.nextInt(600),
+                    filter);
+        }
+    }
+
+    /**
+     * Shops either side of the node boundaries, including the ones at the
+     * origin every split of the root lands on.
+     */
+    @Test
+    public void boundaries() {
+        final List<Shop> shops = new ArrayList<>();
+        for (int x = -3; x <= 3; x++) {
+            for (int z = -3; z <= 3; z++) {
+                shops.add(shopAt(x, 64, z));
+                shops.add(shopAt(x * 1024, 64, z * 1024));
+                shops.add(shopAt(x * 1024 - 1, 64, z * 1024 - 1));
+            }
+        }
+        shops.add(shopAt(Integer.MAX_VALUE, 64, Integer.MAX_VALUE));
+        shops.add(shopAt(Integer.MIN_VALUE, 64, Integer.MIN_VALUE));
+        shops.add(shopAt(Integer.MAX_VALUE, 64, Integer.MIN_VALUE));
+        final ShopQuadTree tree = treeOf(shops);
+
+        for (int x = -2; x <= 2; x++) {
+            for (int z = -2; z <= 2; z++) {
+                checkRadius(tree, shops, x, 64, z, 1, null);
+                checkRadius(tree, shops, x * 1024 - 0.5, 64, z * 1024 - 0.5, 1.5, null);
+                checkNearest(tree, shops, x * 1024 - 0.5, 64, z * 1024 - 0.5, 4, 3000, null);
+                checkBox(tree, shops, x * 1024, 64, z * 1024, x * 1024, 64, z * 1024, null);
+                checkBox(tree, shops, x * 1024 - 1, 0, z * 1024 - 1, x * 1024, 255, z * 1024, null);
+            }
+        }
+        checkBox(tree, shops, Integer.MIN_VALUE, 0, Integer.MIN_VALUE, Integer.MAX_VALUE, 255, Integer.MAX_VALUE,
+                null);
+        checkNearest(tree, shops, Integer.MAX_VALUE, 64, Integer.MAX_VALUE, 2, Double.MAX_VALUE, null);
+    }
+
+    /**
+     * The closest shop is only found after searching back into nodes further
+     * from the point than the first leaf visited.
+     */
+    @Test
+    public void nearestSearchesBack() {
+        final List<Shop> shops = new ArrayList<>();
+        // A full leaf just across the origin from the point, all a long way up
+        for (int i = 0; i < 40; i++) {
+            shops.add(shopAt(i % 8, 250, i / 8));
+        }
+        // And one close in y, in the next node over
+        final Shop closest = shopAt(-1, 10, 0);
+        shops.add(closest);
+        final ShopQuadTree tree = treeOf(shops);
+
+        final List<Shop> found = tree.nearest(0, 10, 0, 1, 1000, null);
+        assertEquals(1, found.size());
+        assertTrue(found.get(0) == closest);
+        checkNearest(tree, shops, 0, 10, 0, 10, 1000, null);
+        checkNearest(tree, shops, 3.5, 200, 2.5, 41, 1000, null);
+    }
+
+    /**
+     * More shops than a leaf holds in one column, which can't be split.
+     */
+    @Test
+    public void fullColumn() {
+        final List<Shop> shops = new ArrayList<>();
+        for (int y = 0; y < 100; y++) {
+            shops.add(shopAt(5, y, -7));
+        }
+        shops.add(shopAt(6, 0, -7));
+        final ShopQuadTree tree = treeOf(shops);
+        assertEquals(shops.size(), tree.size());
+        checkRadius(tree, shops, 5, 50, -7, 10, null);
+        checkNearest(tree, shops, 5, 50, -7, 15, 100, null);
+        checkBox(tree, shops, 5, 20, -7, 6, 40, -7, null);
+
+        for (int i = 0; i < 60; i++) {
+            assertTrue(tree.remove(shops.remove(0)));
+        }
+        assertEquals(shops.size(), tree.size());
+        checkRadius(tree, shops, 5, 50, -7, 100, null);
+        checkNearest(tree, shops, 5, 0, -7, 50, 100, null);
+    }
+
+    @Test
+    public void removeMergesLeaves() {
+        final Random random = new Random(7);
+        final List<Shop> shops = randomShops(random, 2000, 300);
+        final ShopQuadTree tree = treeOf(shops);
+
+        assertFalse(tree.remove(shopAt(0, 64, 0)));
+        while (!shops.isEmpty()) {
+            final Shop removed = shops.remove(random.nextInt(shops.size()));
+            assertTrue(tree.remove(removed));
+            assertFalse(tree.remove(removed));
+            assertEquals(shops.size(), tree.size());
+            if (shops.size() % 97 == 0) {
+                checkRadius(tree, shops, 0, 64, 0, 200, null);
+                checkNearest(tree, shops, 10, 64, -10, 25, 500, null);
+                checkBox(tree, shops, -300, 0, -300, 300, 255, 300, null);
+            }
+        }
+        assertEquals(0, tree.countNear(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+
+        final List<Shop> again = randomShops(random, 500, 300);
+        for (final Shop shop: again) {
+            tree.insert(shop);
+        }
+        checkRadius(tree, again, 0, 64, 0, 150, null);
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertTrue(tree.withinRadius(0, 64, 0, 1000, null).isEmpty());
+    }
+}
@@ -0,0 +1,69 @@
+package org.maxgamer.QuickShop.Util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ItemCodec against the YAML the itemConfig column holds, for the item from
+ * {@link ItemCodecTest#sword()}. This times the encoding alone, deserializing
+ * the meta on a server costs the same either way.
+ *
+ * Run with: mvn -Pbenchmark verify -Dbenchmark=ItemCodec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemCodecBenchmark {
+    private Map<String, Object> item;
+    private byte[]              data;
+    private String              yaml;
+
+    @Setup
+    public void setup() throws IOException {
+        // Registers the stand-in meta
+        item = ItemCodecTest.sword();
+        data = ItemCodec.encodeValue(item);
+        yaml = encodeYaml();
+    }
+
+    @Benchmark
+    public byte[] encodeCodec() throws IOException {
+        return ItemCodec.encodeValue(item);
+    }
+
+    @Benchmark
+    public String encodeYaml() {
+        final YamlConfiguration cfg = new YamlConfiguration();
+        cfg.set("item", item);
+        return cfg.saveToString();
+    }
+
+    @Benchmark
+    public Object decodeCodec() throws IOException {
+        return ItemCodec.decodeValue(data);
+    }
+
+    @Benchmark
+    public Object decodeYaml() throws InvalidConfigurationException {
+        final YamlConfiguration cfg = new YamlConfiguration();
+        cfg.loadFromString(yaml);
+        return cfg.get("item");
+    }
+}
@@ -0,0 +1,175 @@
+package org.maxgamer.QuickShop.Util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.configuration.serialization.SerializableAs;
+import org.junit.Test;
+
+/**
+ * Round trips the maps ItemStack.serialize() gives through ItemCodec. A real
+ * ItemStack needs a running server, so the item meta is stood in for by a
+ * serializable holding the same map CraftMetaItem serializes to.
+ */
+public class ItemCodecTest {
+    /** Holds the map a piece of item meta serializes to */
+    @SerializableAs("QuickShopTestMeta")
+    public static class TestMeta implements ConfigurationSerializable {
+        private final Map<String, Object> map;
+
+        public TestMeta(Map<String, Object> map) {
+            this.map = map;
+        }
+
+        public static TestMeta deserialize(Map<String, Object> map) {
+            final Map<String, Object> copy = new LinkedHashMap<>(map);
+            copy.remove(ConfigurationSerialization.SERIALIZED_TYPE_KEY);
+            return new TestMeta(copy);
+        }
+
+        @Override
+        public Map<String, Object> serialize() {
+            return map;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TestMeta && map.equals(((TestMeta) o).map);
+        }
+
+        @Override
+        public int hashCode() {
+            return map.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "TestMeta" + map;
+        }
+    }
+
+    static {
+        ConfigurationSerialization.registerClass(TestMeta.class);
+    }
+
+    private static Map<String, Object> map(Object... entries) {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < entries.length; i += 2) {
+            map.put((String) entries[i], entries[i + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * @return The map an enchanted, renamed, damaged sword with lore,
+     *         attributes and persistent data serializes to
+     */
+    static Map<String, Object> sword() {
+        final Map<String, Object> attribute = map("uuid", "3f2a6a4e-1c6b-4e0e-9a55-2b1f6f0c9d11", "name",
+                "generic.attack_damage", "amount", 4.5d, "operation", 0, "slot", "HAND");
+        final Map<String, Object> meta = map(
+                "meta-type", "UNSPECIFIC",
+                "display-name", "{\"extra\":[{\"color\":\"gold\",\"text\":\"Excalibur \u2726\"}],\"text\":\"\"}",
+                "lore", Arrays.asList("{\"text\":\"Line one\"}",
+                        "{\"text\":\"\u00dcn\u00efc\u00f6d\u00e9 \u65e5\u672c\u8a9e\"}", ""),
+                "enchants", map("DAMAGE_ALL", 5, "DURABILITY", 3, "MENDING", 1),
+                "repair-cost", 7,
+                "ItemFlags", Arrays.asList("HIDE_ENCHANTS", "HIDE_ATTRIBUTES"),
+                "Unbreakable", true,
+                "Damage", 120,
+                "custom-model-data", 1234567,
+                "AttributeModifiers", map("GENERIC_ATTACK_DAMAGE", Arrays.asList(new TestMeta(attribute))),
+                "PublicBukkitValues", map(
+                        "quickshop:display", "1b",
+                        "otherplugin:owner", "\"2d9b7c0e-7a0c-4a8e-bf62-0c5b1a9d4e77\"",
+                        "otherplugin:stats", map("kills", "42", "ratio", "0.75d", "ids", Arrays.asList("1L", "-2L"))),
+                "internal", "H4sIAAAAAAAAAONiYGBgZGBgZWBgYGRgYGBgAAAwS6mKGAAAAA==");
+        return map("v", 2586, "type", "DIAMOND_SWORD", "amount", 1, "meta", new TestMeta(meta));
+    }
+
+    private static Object roundTrip(Object value) throws IOException {
+        return ItemCodec.decodeValue(ItemCodec.encodeValue(value));
+    }
+
+    @Test
+    public void roundTripsItemWithMeta() throws IOException {
+        final Map<String, Object> item = sword();
+        assertEquals(item, roundTrip(item));
+    }
+
+    @Test
+    public void roundTripsPlainValues() throws IOException {
+        final List<Object> values = Arrays.asList(null, "", "text", 0, 1, -1, 63, -64, 64, Integer.MAX_VALUE,
+                Integer.MIN_VALUE, 0L, Long.MAX_VALUE, Long.MIN_VALUE, 0d, -0.5d, Double.MAX_VALUE, Double.NaN,
+                Double.NEGATIVE_INFINITY, true, false, new ArrayList<>(), map(), Arrays.asList(1, "a", null));
+        for (final Object value: values) {
+            assertEquals(value, roundTrip(value));
+        }
+        assertEquals(values, roundTrip(values));
+    }
+
+    /**
+     * Values come back as the types YAML would read them back as.
+     */
+    @Test
+    public void readsBackLikeYaml() throws IOException {
+        assertEquals(7, roundTrip((short) 7));
+        assertEquals(-3, roundTrip((byte) -3));
+        assertEquals(1.5d, roundTrip(1.5f));
+        assertEquals(Arrays.asList("b", "a"), roundTrip(new LinkedHashSet<>(Arrays.asList("b", "a"))));
+        assertEquals(map("1", "one"), roundTrip(map("1", "one")));
+    }
+
+    @Test
+    public void rejectsDamagedData() throws IOException {
+        final byte[] data = ItemCodec.encodeValue(sword());
+        for (int length = 0; length < data.length; length++) {
+            try {
+                ItemCodec.decodeValue(Arrays.copyOf(data, length));
+                fail("Decoded " + length + " of " + data.length + " bytes");
+            } catch (final IOException expected) {
+                // Damaged
+            }
+        }
+
+        final byte[] future = data.clone();
+        future[0] = ItemCodec.VERSION + 1;
+        try {
+            ItemCodec.decodeValue(future);
+            fail("Decoded an unknown version");
+        } catch (final IOException expected) {
+            assertTrue(expected.getMessage().startsWith("Unknown item format"));
+        }
+
+        final byte[] unknownAlias = ItemCodec.encodeValue(new TestMeta(map("a", 1)));
+        // The first letter of the alias
+        unknownAlias[3] = 'X';
+        try {
+            ItemCodec.decodeValue(unknownAlias);
+            fail("Decoded an unknown class");
+        } catch (final IOException expected) {
+            // Damaged
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonItems() throws IOException {
+        ItemCodec.decode(ItemCodec.encodeValue(sword()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownValues() throws IOException {
+        ItemCodec.encodeValue(new Object());
+    }
+}